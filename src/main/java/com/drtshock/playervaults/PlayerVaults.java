@@ -29,10 +29,19 @@ import com.drtshock.playervaults.placeholder.Papi;
 import com.drtshock.playervaults.tasks.Cleanup;
 import com.drtshock.playervaults.util.ComponentDispatcher;
 import com.drtshock.playervaults.util.Permission;
+import com.drtshock.playervaults.vaultmanagement.CardboardBoxSerialization;
 import com.drtshock.playervaults.vaultmanagement.EconomyOperations;
+import com.drtshock.playervaults.vaultmanagement.ItemCache;
+import com.drtshock.playervaults.vaultmanagement.PayloadCodec;
+import com.drtshock.playervaults.vaultmanagement.ItemBlockRules;
+import com.drtshock.playervaults.vaultmanagement.PermissionResolver;
 import com.drtshock.playervaults.vaultmanagement.VaultManager;
+import com.drtshock.playervaults.vaultmanagement.VaultSessions;
 import com.drtshock.playervaults.vaultmanagement.VaultViewInfo;
+import com.drtshock.playervaults.vaultmanagement.storage.BinaryVaultStorage;
+import com.drtshock.playervaults.vaultmanagement.storage.LogVaultStorage;
 import com.drtshock.playervaults.vaultmanagement.storage.MySQLVaultStorage;
+import com.drtshock.playervaults.vaultmanagement.storage.SQLiteVaultStorage;
 import com.drtshock.playervaults.vaultmanagement.storage.VaultStorage;
 import com.drtshock.playervaults.vaultmanagement.storage.YamlVaultStorage;
 import com.google.gson.Gson;
@@ -47,9 +56,7 @@ import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.enchantments.Enchantment;
 import org.bukkit.entity.Player;
-import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.inventory.meta.ItemMeta;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitRunnable;
@@ -67,6 +74,7 @@ import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Supplier;
 import java.util.logging.Level;
@@ -77,18 +85,15 @@ public class PlayerVaults extends JavaPlugin {
     public static boolean DEBUG;
     private static PlayerVaults instance;
     private final HashMap<String, SignSetInfo> setSign = new HashMap<>();
-    // Player name - VaultViewInfo
-    private final HashMap<String, VaultViewInfo> inVault = new HashMap<>();
-    // VaultViewInfo - Inventory
-    private final HashMap<String, Inventory> openInventories = new HashMap<>();
-    private final Set<Material> blockedMats = new HashSet<>();
-    private final Set<Enchantment> blockedEnchs = new HashSet<>();
+    private final VaultSessions sessions = new VaultSessions();
+    private final PermissionResolver permissionResolver = new PermissionResolver();
+    private volatile ItemBlockRules blockRules = ItemBlockRules.NONE;
     private final Config config = new Config();
     private final Translation translation = new Translation(this);
+    // Vault number - rendered title, cleared when the lang file is reloaded
+    private final Map<String, String> vaultTitles = new ConcurrentHashMap<>();
     private final List<String> exceptions = new CopyOnWriteArrayList<>();
     private final Set<UUID> told = new HashSet<>();
-    private boolean blockWithModelData = false;
-    private boolean blockWithoutModelData = false;
     private boolean useVault;
     private YamlConfiguration signs;
     private File signsFile;
@@ -146,6 +151,7 @@ public class PlayerVaults extends JavaPlugin {
         getServer().getPluginManager().registerEvents(new Listeners(this), this);
         getServer().getPluginManager().registerEvents(new VaultPreloadListener(), this);
         getServer().getPluginManager().registerEvents(new SignListener(this), this);
+        getServer().getScheduler().runTaskTimer(this, () -> this.sessions.sweep(this.vaultManager), 20 * 60, 20 * 60);
         debug("registering listeners", time);
         time = System.currentTimeMillis();
         this.backupsEnabled = this.getConf().getStorage().getFlatFile().isBackups();
@@ -239,7 +245,7 @@ public class PlayerVaults extends JavaPlugin {
             Map<String, Map<String, Integer>> map = new HashMap<>();
             Map<String, Integer> entry = new HashMap<>();
             if (getConf().getItemBlocking().isEnabled()) {
-                for (Material material : blockedMats) {
+                for (Material material : blockRules.getMaterials()) {
                     entry.put(material.toString(), 1);
                 }
             }
@@ -316,16 +322,49 @@ public class PlayerVaults extends JavaPlugin {
     }
 
     private void setupVaultManager() {
+        VaultManager old = this.vaultManager;
+        if (old != null) {
+            // Reloading, the old storage must be done writing and loading before the new one opens its files and
+            // connections, it is only closed once the new one opened
+            old.stop();
+        }
         String storageType = getConf().getStorage().getStorageType();
+        PayloadCodec.setMode(PayloadCodec.Mode.fromConfig(getConf().getStorage().getCompression()));
+        CardboardBoxSerialization.setItemCache(new ItemCache(getConf().getStorage().getItemCacheSize()));
         VaultStorage storage;
+        try {
+            storage = this.createStorage(storageType);
+        } catch (RuntimeException e) {
+            if (old == null) {
+                throw e;
+            }
+            this.addException(new IllegalStateException("Failed to open " + storageType + " storage", e));
+            getLogger().log(Level.SEVERE, "Failed to open " + storageType + " storage, keeping the current one", e);
+            this.vaultManager = new VaultManager(this, old.getStorage());
+            return;
+        }
+        if (old != null) {
+            old.getStorage().close();
+        }
+        this.vaultManager = new VaultManager(this, storage);
+    }
+
+    private VaultStorage createStorage(String storageType) {
         if ("mysql".equalsIgnoreCase(storageType)) {
             // Read MySQL parameters from config
             Config.Storage.MySQL mySQL = getConf().getStorage().getMySQL();
-            storage = new MySQLVaultStorage(mySQL.getHost(), mySQL.getPort(), mySQL.getDatabase(), mySQL.getUsername(), mySQL.getPassword());
+            return new MySQLVaultStorage(mySQL.getHost(), mySQL.getPort(), mySQL.getDatabase(), mySQL.getUsername(), mySQL.getPassword(), mySQL.getPoolSize(), mySQL.getConnectionTimeout(), mySQL.getIdleTimeout() * 1000L, mySQL.getBatchWindow());
+        } else if ("binary".equalsIgnoreCase(storageType)) {
+            return new BinaryVaultStorage();
+        } else if ("sqlite".equalsIgnoreCase(storageType)) {
+            return new SQLiteVaultStorage(this.getDataFolder().toPath().resolve(getConf().getStorage().getSQLite().getFile()));
+        } else if ("log".equalsIgnoreCase(storageType)) {
+            Config.Storage.Log log = getConf().getStorage().getLog();
+            return new LogVaultStorage(this.getDataFolder().toPath().resolve("vaultlog"), log.getSegmentSize() * 1024L * 1024L, log.getCompactionThreshold() / 100D, Math.max(1, log.getCompactionInterval()), log.isMemoryMapped());
         } else {
-            storage = new YamlVaultStorage();
+            Config.Storage.FlatFile flatFile = getConf().getStorage().getFlatFile();
+            return new YamlVaultStorage(flatFile.getCacheSize() * 1024L * 1024L, flatFile.getOffHeapCacheSize() * 1024L * 1024L);
         }
-        this.vaultManager = new VaultManager(this, storage);
     }
 
     public VaultManager getVaultManager() {
@@ -359,22 +398,25 @@ public class PlayerVaults extends JavaPlugin {
     @Override
     public void onDisable() {
         for (Player player : Bukkit.getOnlinePlayers()) {
-            if (this.inVault.containsKey(player.getUniqueId().toString())) {
-                Inventory inventory = player.getOpenInventory().getTopInventory();
-                if (inventory.getViewers().size() == 1) {
-                    VaultViewInfo info = this.inVault.get(player.getUniqueId().toString());
-                    vaultManager.saveVault(inventory, player.getUniqueId().toString(), info.getNumber());
-                    this.openInventories.remove(info.toString());
+            VaultSessions.Session session = this.sessions.close(player.getUniqueId());
+            if (session != null) {
+                if (session.getViewerCount() == 0) {
+                    VaultViewInfo info = session.getVault();
+                    vaultManager.saveVaultIfChanged(session.getInventory(), info.getVaultName(), info.getNumber());
+                    this.sessions.end(session);
                     // try this to make sure that they can't make further edits if the process hangs.
                     player.closeInventory();
                 }
 
-                this.inVault.remove(player.getUniqueId().toString());
                 debug("Closing vault for " + player.getName());
                 player.closeInventory();
             }
         }
 
+        if (vaultManager != null) {
+            vaultManager.shutdown();
+        }
+
         if (getConf().getPurge().isEnabled()) {
             saveSignsFile();
         }
@@ -385,6 +427,7 @@ public class PlayerVaults extends JavaPlugin {
         if (cmd.getName().equalsIgnoreCase("pvreload")) {
             reloadConfig();
             loadConfig(); // To update blocked materials.
+            this.permissionResolver.invalidateAll();
             reloadSigns();
             sender.sendMessage(ChatColor.GREEN + "Reloaded PlayerVault's configuration and lang files.");
         }
@@ -409,45 +452,7 @@ public class PlayerVaults extends JavaPlugin {
             this.getLogger().log(Level.SEVERE, "Could not load config.", e);
         }
 
-        // Clear just in case this is a reload.
-        blockedMats.clear();
-        blockedEnchs.clear();
-        this.blockWithModelData = false;
-        this.blockWithoutModelData = false;
-        if (getConf().getItemBlocking().isEnabled()) {
-            for (String s : getConf().getItemBlocking().getList()) {
-                if (s.equalsIgnoreCase("BLOCK_ALL_WITH_CUSTOM_MODEL_DATA")) {
-                    this.blockWithModelData = true;
-                }
-                if (s.equalsIgnoreCase("BLOCK_ALL_WITHOUT_CUSTOM_MODEL_DATA")) {
-                    this.blockWithoutModelData = true;
-                }
-                Material mat = Material.matchMaterial(s);
-                if (mat != null) {
-                    blockedMats.add(mat);
-                    getLogger().log(Level.INFO, "Added {0} to list of blocked materials.", mat.name());
-                }
-            }
-            boolean badEnch = false;
-            for (String s : getConf().getItemBlocking().getEnchantmentsBlocked()) {
-                Enchantment ench = Registry.ENCHANTMENT.match(s);
-                if (ench != null) {
-                    blockedEnchs.add(ench);
-                } else {
-                    badEnch = true;
-                    this.getLogger().warning("Invalid enchantment in config: " + s);
-                }
-            }
-            if (badEnch) {
-                this.getLogger().info("Valid enchantent options: " + Registry.ENCHANTMENT.stream().map(e -> e.getKey().toString()).collect(Collectors.joining(", ")));
-            }
-        }
-        try {
-            ItemMeta.class.getMethod("hasCustomModelData");
-        } catch (NoSuchMethodException e) {
-            this.blockWithModelData = false;
-            this.blockWithoutModelData = false;
-        }
+        this.blockRules = ItemBlockRules.compile(getConf().getItemBlocking(), this.getLogger());
 
         File lang = new File(this.getDataFolder(), "lang");
         if (lang.exists()) {
@@ -474,6 +479,7 @@ public class PlayerVaults extends JavaPlugin {
             this.getLogger().log(Level.SEVERE, "Could not load lang.", e);
         }
         this.translation.cleanupMiniMessup();
+        this.vaultTitles.clear();
         setupVaultManager();
     }
 
@@ -545,12 +551,12 @@ public class PlayerVaults extends JavaPlugin {
         return this.setSign;
     }
 
-    public HashMap<String, VaultViewInfo> getInVault() {
-        return this.inVault;
+    public VaultSessions getSessions() {
+        return this.sessions;
     }
 
-    public HashMap<String, Inventory> getOpenInventories() {
-        return this.openInventories;
+    public PermissionResolver getPermissionResolver() {
+        return this.permissionResolver;
     }
 
     public boolean isEconomyEnabled() {
@@ -605,23 +611,27 @@ public class PlayerVaults extends JavaPlugin {
     }
 
     public boolean isBlockedMaterial(Material mat) {
-        return blockedMats.contains(mat);
+        return this.blockRules.isBlocked(mat);
     }
 
     public boolean isBlockWithModelData() {
-        return this.blockWithModelData;
+        return this.blockRules.isBlockWithModelData();
     }
 
     public boolean isBlockWithoutModelData() {
-        return this.blockWithoutModelData;
+        return this.blockRules.isBlockWithoutModelData();
     }
 
     public Set<Enchantment> isEnchantmentBlocked(ItemStack item) {
         Set<Enchantment> enchantments = new HashSet<>(item.getEnchantments().keySet());
-        enchantments.retainAll(this.blockedEnchs);
+        enchantments.retainAll(this.blockRules.getEnchantments());
         return enchantments;
     }
 
+    public ItemBlockRules getBlockRules() {
+        return this.blockRules;
+    }
+
     /**
      * Tries to grab the server version as a string.
      *
@@ -657,7 +667,7 @@ public class PlayerVaults extends JavaPlugin {
     }
 
     public String getVaultTitle(String id) {
-        return this.translation.vaultTitle().with("vault", id).getLegacy();
+        return this.vaultTitles.computeIfAbsent(id, key -> this.translation.vaultTitle().with("vault", key).getLegacy());
     }
 
     public String getExceptions() {
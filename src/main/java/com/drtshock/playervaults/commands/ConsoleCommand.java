@@ -20,7 +20,6 @@ package com.drtshock.playervaults.commands;
 
 import com.drtshock.playervaults.PlayerVaults;
 import com.drtshock.playervaults.vaultmanagement.VaultOperations;
-import com.drtshock.playervaults.vaultmanagement.VaultViewInfo;
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
@@ -70,16 +69,17 @@ public class ConsoleCommand implements CommandExecutor {
                         sender.sendMessage("FAILED TO LOOK UP UUID FOR NAME");
                         return true;
                     }
-                    int number;
                     try {
-                        number = Integer.parseInt(vaultId);
+                        Integer.parseInt(vaultId);
                     } catch (NumberFormatException e) {
                         sender.sendMessage("NOT NUMBER");
                         return true;
                     }
-                    if (VaultOperations.openOtherVault(plr, owner, vaultId)) {
-                        PlayerVaults.getInstance().getInVault().put(plr.getUniqueId().toString(), new VaultViewInfo(owner, number));
-                    } else {
+                    if (!VaultOperations.openOtherVault(plr, owner, vaultId, true, opened -> {
+                        if (!opened) {
+                            sender.sendMessage("FAILED!?");
+                        }
+                    })) {
                         sender.sendMessage("FAILED!?");
                     }
                 }
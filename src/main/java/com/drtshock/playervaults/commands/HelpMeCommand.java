@@ -21,6 +21,10 @@ package com.drtshock.playervaults.commands;
 import com.drtshock.playervaults.PlayerVaults;
 import com.drtshock.playervaults.util.ComponentDispatcher;
 import com.drtshock.playervaults.util.Permission;
+import com.drtshock.playervaults.vaultmanagement.CardboardBoxSerialization;
+import com.drtshock.playervaults.vaultmanagement.ItemCache;
+import com.drtshock.playervaults.vaultmanagement.storage.OffHeapVaultCache;
+import com.drtshock.playervaults.vaultmanagement.storage.VaultCache;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.event.ClickEvent;
 import net.kyori.adventure.text.minimessage.MiniMessage;
@@ -62,6 +66,19 @@ public class HelpMeCommand implements CommandExecutor {
             mainInfo.append(Bukkit.getName()).append(" version: ").append(Bukkit.getServer().getVersion()).append('\n');
             mainInfo.append("Plugin ").append(likesCats ? "version" : "Version").append(": ").append(plugin.getDescription().getVersion()).append('\n');
             mainInfo.append("Java version: ").append(System.getProperty("java.version")).append('\n');
+            ItemCache itemCache = CardboardBoxSerialization.getItemCache();
+            mainInfo.append("Item cache: ").append(itemCache.size()).append('/').append(itemCache.getCapacity())
+                    .append(", ").append(itemCache.getHits()).append(" hits, ").append(itemCache.getMisses()).append(" misses").append('\n');
+            VaultCache vaultCache = plugin.getVaultManager().getVaultCache();
+            if (vaultCache != null) {
+                mainInfo.append("Vault cache: ").append(vaultCache.size()).append(" holders, ").append(vaultCache.getWeight() / 1024).append('/').append(vaultCache.getMaxWeight() / 1024)
+                        .append(" KiB, ").append(vaultCache.getHits()).append(" hits, ").append(vaultCache.getMisses()).append(" misses, ").append(vaultCache.getEvictions()).append(" evictions").append('\n');
+                OffHeapVaultCache offHeap = vaultCache.getOffHeap();
+                if (offHeap != null) {
+                    mainInfo.append("Off-heap vault cache: ").append(offHeap.size()).append(" holders, ").append(offHeap.getUsed() / 1024).append('/').append(offHeap.getCapacity() / 1024)
+                            .append(" KiB, ").append(offHeap.getHits()).append(" hits").append('\n');
+                }
+            }
             if (args.length >= 1 && args[0].equalsIgnoreCase("mini")) {
                 for (String string : mainInfo.toString().split("\n")) {
                     ComponentDispatcher.send(sender, MiniMessage.miniMessage().deserialize((sender instanceof Player ? "<rainbow>" : "<green>") + string));
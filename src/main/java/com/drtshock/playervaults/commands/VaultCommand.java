@@ -21,7 +21,6 @@ package com.drtshock.playervaults.commands;
 import com.drtshock.playervaults.PlayerVaults;
 import com.drtshock.playervaults.util.Permission;
 import com.drtshock.playervaults.vaultmanagement.VaultOperations;
-import com.drtshock.playervaults.vaultmanagement.VaultViewInfo;
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
@@ -47,16 +46,14 @@ public class VaultCommand implements CommandExecutor {
         }
 
         if (sender instanceof Player player) {
-            if (PlayerVaults.getInstance().getInVault().containsKey(player.getUniqueId().toString())) {
+            if (PlayerVaults.getInstance().getSessions().isViewing(player.getUniqueId())) {
                 // don't let them open another vault.
                 return true;
             }
 
             switch (args.length) {
                 case 1:
-                    if (VaultOperations.openOwnVault(player, args[0], true)) {
-                        PlayerVaults.getInstance().getInVault().put(player.getUniqueId().toString(), new VaultViewInfo(player.getUniqueId().toString(), Integer.parseInt(args[0])));
-                    }
+                    VaultOperations.openOwnVault(player, args[0], true);
                     break;
                 case 2:
                     if (!player.hasPermission(Permission.ADMIN)) {
@@ -76,9 +73,8 @@ public class VaultCommand implements CommandExecutor {
                         break;
                     }
 
-                    int number;
                     try {
-                        number = Integer.parseInt(args[1]);
+                        Integer.parseInt(args[1]);
                     } catch (NumberFormatException e) {
                         this.plugin.getTL().mustBeNumber().title().send(sender);
                         return true;
@@ -86,10 +82,13 @@ public class VaultCommand implements CommandExecutor {
 
                     String target = getTarget(args[0]);
 
-                    if (VaultOperations.openOtherVault(player, target, args[1])) {
-                        PlayerVaults.getInstance().getInVault().put(player.getUniqueId().toString(), new VaultViewInfo(target, number));
-                    } else {
-                        this.plugin.getTL().noOwnerFound().title().with("player", args[0]).send(sender);
+                    Runnable notFound = () -> this.plugin.getTL().noOwnerFound().title().with("player", args[0]).send(sender);
+                    if (!VaultOperations.openOtherVault(player, target, args[1], true, opened -> {
+                        if (!opened) {
+                            notFound.run();
+                        }
+                    })) {
+                        notFound.run();
                     }
                     break;
                 default:
@@ -66,7 +66,11 @@ public class Config {
     private PurgePlanet purge = new PurgePlanet();
     @Comment("Sets the highest vault amount this plugin will test perms for")
     private int maxVaultAmountPermTest = 99;
-    @Comment("Storage option. flatfile or MySQL")
+    @Comment("""
+            Storage option. flatfile, binary, log, SQLite or MySQL
+             binary stores each vault in its own file and converts flatfile data as players are loaded.
+             log appends every save to segment files in the vaultlog folder, which are compacted in the background.
+             SQLite keeps all vaults in a single database file, without needing a database server.""")
     private Storage storage = new Storage();
 
     public void setFromConfig(Logger l, FileConfiguration c) {
@@ -140,6 +144,20 @@ public class Config {
         @Comment("Enchantments to block from entering a vault at all.")
         private List<String> enchantmentsBlocked = new ArrayList<>();
 
+        @Comment("Custom model data to block, as single values like \"1001\" or ranges like \"1000-1999\".")
+        private List<String> customModelData = new ArrayList<>();
+
+        @Comment("Regular expressions matched against item names, without colors. Items with a matching name are blocked.")
+        private List<String> namePatterns = new ArrayList<>();
+
+        @Comment("Regular expressions matched against each line of item lore, without colors.")
+        private List<String> lorePatterns = new ArrayList<>();
+
+        @Comment("""
+                Regular expressions matched against all of an item's data, as shown by /data or in give commands.
+                 Needs a server version that can show item data as text, ignored otherwise.""")
+        private List<String> nbtPatterns = new ArrayList<>();
+
         public boolean isEnabled() {
             return this.enabled;
         }
@@ -157,6 +175,34 @@ public class Config {
             }
             return Collections.unmodifiableList(this.enchantmentsBlocked);
         }
+
+        public List<String> getCustomModelData() {
+            if (this.customModelData == null) {
+                this.customModelData = new ArrayList<>();
+            }
+            return Collections.unmodifiableList(this.customModelData);
+        }
+
+        public List<String> getNamePatterns() {
+            if (this.namePatterns == null) {
+                this.namePatterns = new ArrayList<>();
+            }
+            return Collections.unmodifiableList(this.namePatterns);
+        }
+
+        public List<String> getLorePatterns() {
+            if (this.lorePatterns == null) {
+                this.lorePatterns = new ArrayList<>();
+            }
+            return Collections.unmodifiableList(this.lorePatterns);
+        }
+
+        public List<String> getNbtPatterns() {
+            if (this.nbtPatterns == null) {
+                this.nbtPatterns = new ArrayList<>();
+            }
+            return Collections.unmodifiableList(this.nbtPatterns);
+        }
     }
 
     public class Economy {
@@ -200,7 +246,29 @@ public class Config {
     public class Storage {
         private FlatFile flatFile = new FlatFile();
         private MySQL mySQL = new MySQL();
+        private Log log = new Log();
+        private SQLite sqlite = new SQLite();
         private String storageType = "flatfile";
+        @Comment("""
+                Save delay
+                 Vaults are saved in the background. Saves of the same vault made within this many
+                 milliseconds of each other are combined into a single write.""")
+        private int saveDelay = 1000;
+        @Comment("""
+                Compression of saved vaults: none, deflate or dictionary
+                 dictionary also uses deflate, primed with common item data, which helps most on small vaults.
+                 Vaults are always readable whatever this is set to, but once saved compressed they can no longer
+                 be read by older versions of PlayerVaultsX.""")
+        private String compression = "none";
+        @Comment("""
+                Number of distinct items kept deserialized, so identical items in vaults are only read once.
+                 Set to 0 to disable.""")
+        private int itemCacheSize = 4096;
+        @Comment("""
+                Vaults saved before a Minecraft update have their items upgraded every time they are opened.
+                 Set this above 0 to rewrite them in the background instead, checking at most this many vaults
+                 per second. Stops once every vault has been checked, and starts over on restart.""")
+        private int upgradeRate = 0;
 
         public FlatFile getFlatFile() {
             return this.flatFile;
@@ -210,19 +278,100 @@ public class Config {
             return mySQL;
         }
 
+        public Log getLog() {
+            return this.log;
+        }
+
+        public SQLite getSQLite() {
+            return this.sqlite;
+        }
+
         public String getStorageType() {
             return this.storageType;
         }
 
+        public int getSaveDelay() {
+            return this.saveDelay;
+        }
+
+        public String getCompression() {
+            return this.compression;
+        }
+
+        public int getItemCacheSize() {
+            return this.itemCacheSize;
+        }
+
+        public int getUpgradeRate() {
+            return this.upgradeRate;
+        }
+
         public class FlatFile {
             @Comment("""
                     Backups
                      Enabling this will create backups of vaults automagically.""")
             private boolean backups = true;
+            @Comment("""
+                    Memory, in megabytes, used to keep the vaults of recently used players.
+                     Set to 0 to read vault files from disk every time.""")
+            private int cacheSize = 64;
+            @Comment("""
+                    Memory, in megabytes, outside the Java heap used to keep vaults of players that logged off or
+                     no longer fit in the cache above, so they load quickly without adding to garbage collection.
+                     Must fit within the JVM's -XX:MaxDirectMemorySize. Set to 0 to disable.""")
+            private int offHeapCacheSize = 0;
 
             public boolean isBackups() {
                 return this.backups;
             }
+
+            public int getCacheSize() {
+                return this.cacheSize;
+            }
+
+            public int getOffHeapCacheSize() {
+                return this.offHeapCacheSize;
+            }
+        }
+
+        public class Log {
+            @Comment("Size, in megabytes, after which a new segment file is started")
+            private int segmentSize = 64;
+            @Comment("""
+                    Segments where less than this percentage of the data is still current get compacted.
+                     Higher values use less disk space but rewrite more data.""")
+            private int compactionThreshold = 50;
+            @Comment("Time, in minutes, between compaction runs")
+            private int compactionInterval = 10;
+            @Comment("""
+                    Memory-map finished segments, so reading a vault does not copy it from disk first.
+                     Uses address space rather than heap, roughly the size of the vaultlog folder.""")
+            private boolean memoryMapped = true;
+
+            public int getSegmentSize() {
+                return this.segmentSize;
+            }
+
+            public int getCompactionThreshold() {
+                return this.compactionThreshold;
+            }
+
+            public int getCompactionInterval() {
+                return this.compactionInterval;
+            }
+
+            public boolean isMemoryMapped() {
+                return this.memoryMapped;
+            }
+        }
+
+        public class SQLite {
+            @Comment("Database file, relative to the plugin folder")
+            private String file = "vaults.db";
+
+            public String getFile() {
+                return this.file;
+            }
         }
 
         public class MySQL {
@@ -236,6 +385,16 @@ public class Config {
             private String username = "root";
             @Comment("MySQL password")
             private String password = "password";
+            @Comment("Most connections kept open to the database at once")
+            private int poolSize = 10;
+            @Comment("Time, in milliseconds, to wait for a free connection before giving up")
+            private int connectionTimeout = 5000;
+            @Comment("Time, in seconds, after which an unused connection is closed")
+            private int idleTimeout = 600;
+            @Comment("""
+                    Time, in milliseconds, to collect vault saves before writing them together
+                     in one transaction. Helps when many vaults are closed at once.""")
+            private int batchWindow = 20;
 
             public String getHost() {
                 return this.host;
@@ -256,6 +415,22 @@ public class Config {
             public String getPassword() {
                 return this.password;
             }
+
+            public int getPoolSize() {
+                return this.poolSize;
+            }
+
+            public int getConnectionTimeout() {
+                return this.connectionTimeout;
+            }
+
+            public int getIdleTimeout() {
+                return this.idleTimeout;
+            }
+
+            public int getBatchWindow() {
+                return this.batchWindow;
+            }
         }
     }
 }
\ No newline at end of file
@@ -50,6 +50,7 @@ public class Translation {
         this.cleanupMiniMessup(this.translations.refundAmount);
         this.cleanupMiniMessup(this.translations.costToCreate);
         this.cleanupMiniMessup(this.translations.costToOpen);
+        this.cleanupMiniMessup(this.translations.refundOpen);
         this.cleanupMiniMessup(this.translations.vaultDoesNotExist);
         this.cleanupMiniMessup(this.translations.clickASign);
         this.cleanupMiniMessup(this.translations.notASign);
@@ -67,6 +68,7 @@ public class Translation {
         this.cleanupMiniMessup(this.translations.blockedItemWithModelData);
         this.cleanupMiniMessup(this.translations.blockedItemWithoutModelData);
         this.cleanupMiniMessup(this.translations.blockedItemWithEnchantments);
+        this.cleanupMiniMessup(this.translations.blockedItemByPattern);
         this.cleanupMiniMessup(this.translations.signsDisabled);
         this.cleanupMiniMessup(this.placeholders.title);
         for (Map.Entry<String, String> entry : this.colorMappings.entrySet()) {
@@ -147,6 +149,10 @@ public class Translation {
         return this.translations.costToOpen;
     }
 
+    public @NonNull TL refundOpen() {
+        return this.translations.refundOpen;
+    }
+
     public @NonNull TL vaultDoesNotExist() {
         return this.translations.vaultDoesNotExist;
     }
@@ -215,6 +221,10 @@ public class Translation {
         return this.translations.blockedItemWithEnchantments;
     }
 
+    public @NonNull TL blockedItemByPattern() {
+        return this.translations.blockedItemByPattern;
+    }
+
     public @NonNull TL signsDisabled() {
         return this.translations.signsDisabled;
     }
@@ -354,6 +364,7 @@ public class Translation {
         private TL refundAmount = TL.of("<normal>You were refunded <info><price></info> for deleting that vault.");
         private TL costToCreate = TL.of("<normal>You were charged <info><price></info> for creating a vault.");
         private TL costToOpen = TL.of("<normal>You were charged <info><price></info> for opening that vault.");
+        private TL refundOpen = TL.of("<normal>You were refunded <info><price></info> as that vault could not be opened.");
         private TL vaultDoesNotExist = TL.of("<error>That vault does not exist!");
         private TL clickASign = TL.of("<normal>Now click a sign!");
         private TL notASign = TL.of("<error>You must click a sign!");
@@ -371,6 +382,7 @@ public class Translation {
         private TL blockedItemWithModelData = TL.of("<error>This item is blocked from vaults.");
         private TL blockedItemWithoutModelData = TL.of("<error>This item is blocked from vaults.");
         private TL blockedItemWithEnchantments = TL.of("<error>This item's enchantments are blocked from vaults.");
+        private TL blockedItemByPattern = TL.of("<error>This item is blocked from vaults.");
         private TL signsDisabled = TL.of("<error>Vault signs are currently disabled.");
     }
 }
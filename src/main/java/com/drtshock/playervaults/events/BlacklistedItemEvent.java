@@ -121,6 +121,9 @@ public class BlacklistedItemEvent extends Event implements Cancellable {
         ENCHANTMENT,
         HAS_MODEL_DATA,
         HAS_NO_MODEL_DATA,
-        TYPE
+        TYPE,
+        NAME,
+        LORE,
+        NBT
     }
 }
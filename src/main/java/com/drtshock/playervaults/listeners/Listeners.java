@@ -22,10 +22,11 @@ import com.drtshock.playervaults.PlayerVaults;
 import com.drtshock.playervaults.config.file.Translation;
 import com.drtshock.playervaults.events.BlacklistedItemEvent;
 import com.drtshock.playervaults.util.Permission;
+import com.drtshock.playervaults.vaultmanagement.ItemBlockRules;
 import com.drtshock.playervaults.vaultmanagement.VaultHolder;
+import com.drtshock.playervaults.vaultmanagement.VaultSessions;
 import com.drtshock.playervaults.vaultmanagement.VaultViewInfo;
 import org.bukkit.Bukkit;
-import org.bukkit.enchantments.Enchantment;
 import org.bukkit.entity.EntityType;
 import org.bukkit.entity.HumanEntity;
 import org.bukkit.entity.Player;
@@ -41,9 +42,7 @@ import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.event.player.PlayerTeleportEvent;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.inventory.meta.ItemMeta;
 
-import java.util.*;
 import java.util.stream.Collectors;
 
 public class Listeners implements Listener {
@@ -55,26 +54,28 @@ public class Listeners implements Listener {
     }
 
     public void saveVault(Player player, Inventory inventory) {
-        VaultViewInfo info = plugin.getInVault().remove(player.getUniqueId().toString());
-        if (info != null) {
+        VaultSessions.Session session = plugin.getSessions().close(player.getUniqueId());
+        if (session != null) {
+            VaultViewInfo info = session.getVault();
+            if (session.isDeleted()) {
+                PlayerVaults.debug("Vault " + info + " was deleted while open, not saving");
+                return;
+            }
             boolean badDay = false;
             if (!(inventory.getHolder() instanceof VaultHolder)) {
                 PlayerVaults.getInstance().getLogger().severe("Encountered lost vault situation for player '" + player.getName() + "', instead finding a '" + inventory.getType() + "' - attempting to save the vault if no viewers present");
                 badDay = true;
-                inventory = plugin.getOpenInventories().get(info.toString());
+                inventory = session.getInventory();
                 if (inventory == null) {
                     PlayerVaults.getInstance().getLogger().severe("Could not find inventory");
                     return;
                 }
             }
-            Inventory inv = Bukkit.createInventory(null, inventory.getSize());
-            inv.setContents(inventory.getContents().clone());
-
             PlayerVaults.debug(inventory.getType() + " " + inventory.getClass().getSimpleName());
-            if (inventory.getViewers().size() <= 1) {
+            if (session.getState() == VaultSessions.State.SAVING) {
                 PlayerVaults.debug("Saving!");
-                plugin.getVaultManager().saveVault(inv, info.getVaultName(), info.getNumber());
-                plugin.getOpenInventories().remove(info.toString());
+                plugin.getVaultManager().saveVaultIfChanged(inventory, info.getVaultName(), info.getNumber());
+                plugin.getSessions().end(session);
             } else {
                 if (badDay) {
                     PlayerVaults.getInstance().getLogger().severe("Viewers size >0: " + inventory.getViewers().stream().map(HumanEntity::getName).collect(Collectors.joining(", ")));
@@ -91,7 +92,7 @@ public class Listeners implements Listener {
         }
         Player p = event.getPlayer();
         // The player will either quit, die, or close the inventory at some point
-        if (plugin.getInVault().containsKey(p.getUniqueId().toString())) {
+        if (plugin.getSessions().isViewing(p.getUniqueId())) {
             return;
         }
         saveVault(p, p.getOpenInventory().getTopInventory());
@@ -116,7 +117,7 @@ public class Listeners implements Listener {
     public void onInteractEntity(PlayerInteractEntityEvent event) {
         Player player = event.getPlayer();
         EntityType type = event.getRightClicked().getType();
-        if ((type == EntityType.VILLAGER || type == EntityType.MINECART) && PlayerVaults.getInstance().getInVault().containsKey(player.getUniqueId().toString())) {
+        if ((type == EntityType.VILLAGER || type == EntityType.MINECART) && PlayerVaults.getInstance().getSessions().isViewing(player.getUniqueId())) {
             event.setCancelled(true);
         }
     }
@@ -129,30 +130,20 @@ public class Listeners implements Listener {
 
         Inventory clickedInventory = event.getClickedInventory();
         if (clickedInventory != null) {
-            VaultViewInfo info = PlayerVaults.getInstance().getInVault().get(player.getUniqueId().toString());
+            VaultViewInfo info = PlayerVaults.getInstance().getSessions().getViewing(player.getUniqueId());
             if (info != null) {
-                int num = info.getNumber();
-                String inventoryTitle = event.getView().getTitle();
-                String title = this.plugin.getVaultTitle(String.valueOf(num));
-                if (inventoryTitle.equalsIgnoreCase(title)) {
-                    ItemStack[] items = new ItemStack[2];
-                    items[0] = event.getCurrentItem();
-                    if (event.getHotbarButton() > -1 && event.getWhoClicked().getInventory().getItem(event.getHotbarButton()) != null) {
-                        items[1] = event.getWhoClicked().getInventory().getItem(event.getHotbarButton());
+                if (event.getView().getTopInventory().getHolder() instanceof VaultHolder) {
+                    ItemStack swapped = null;
+                    if (event.getHotbarButton() > -1) {
+                        swapped = event.getWhoClicked().getInventory().getItem(event.getHotbarButton());
                     }
                     if (event.getClick().name().equals("SWAP_OFFHAND")) {
-                        items[1] = event.getWhoClicked().getInventory().getItemInOffHand();
+                        swapped = event.getWhoClicked().getInventory().getItemInOffHand();
                     }
 
                     if (!player.hasPermission(Permission.BYPASS_BLOCKED_ITEMS)) {
-                        for (ItemStack item : items) {
-                            if (item == null) {
-                                continue;
-                            }
-                            if (this.isBlocked(player, item, info)) {
-                                event.setCancelled(true);
-                                return;
-                            }
+                        if (this.isBlocked(player, event.getCurrentItem(), info) || this.isBlocked(player, swapped, info)) {
+                            event.setCancelled(true);
                         }
                     }
                 }
@@ -168,12 +159,9 @@ public class Listeners implements Listener {
 
         Inventory clickedInventory = event.getInventory();
         if (clickedInventory != null) {
-            VaultViewInfo info = PlayerVaults.getInstance().getInVault().get(player.getUniqueId().toString());
+            VaultViewInfo info = PlayerVaults.getInstance().getSessions().getViewing(player.getUniqueId());
             if (info != null) {
-                int num = info.getNumber();
-                String inventoryTitle = event.getView().getTitle();
-                String title = this.plugin.getVaultTitle(String.valueOf(num));
-                if ((inventoryTitle != null && inventoryTitle.equalsIgnoreCase(title)) && event.getNewItems() != null) {
+                if (clickedInventory.getHolder() instanceof VaultHolder && event.getNewItems() != null) {
                     if (!player.hasPermission(Permission.BYPASS_BLOCKED_ITEMS)) {
                         for (ItemStack item : event.getNewItems().values()) {
                             if (this.isBlocked(player, item, info)) {
@@ -187,34 +175,46 @@ public class Listeners implements Listener {
         }
     }
 
-    private boolean isBlocked(Player player, ItemStack item, VaultViewInfo info) {
-        List<BlacklistedItemEvent.Reason> reasons = new ArrayList<>();
-        Map<BlacklistedItemEvent.Reason, Translation.TL.Builder> responses = new HashMap<>();
-        if (PlayerVaults.getInstance().isBlockWithModelData() && ((item.getItemMeta() instanceof ItemMeta i) && i.hasCustomModelData())) {
-            reasons.add(BlacklistedItemEvent.Reason.HAS_MODEL_DATA);
-            responses.put(BlacklistedItemEvent.Reason.HAS_MODEL_DATA, this.plugin.getTL().blockedItemWithModelData().title());
-        }
-        if (PlayerVaults.getInstance().isBlockWithoutModelData() && !((item.getItemMeta() instanceof ItemMeta i) && i.hasCustomModelData())) {
-            reasons.add(BlacklistedItemEvent.Reason.HAS_NO_MODEL_DATA);
-            responses.put(BlacklistedItemEvent.Reason.HAS_NO_MODEL_DATA, this.plugin.getTL().blockedItemWithoutModelData().title());
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onClickMonitor(InventoryClickEvent event) {
+        // Shift and double clicks can change other vault slots too, those are found by comparing the contents
+        if (event.getInventory().getHolder() instanceof VaultHolder holder && event.getRawSlot() >= 0 && event.getRawSlot() < event.getInventory().getSize()) {
+            holder.markDirty(event.getRawSlot());
         }
-        if (PlayerVaults.getInstance().isBlockedMaterial(item.getType())) {
-            reasons.add(BlacklistedItemEvent.Reason.TYPE);
-            responses.put(BlacklistedItemEvent.Reason.TYPE, this.plugin.getTL().blockedItem().title().with("item", item.getType().name()));
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onDragMonitor(InventoryDragEvent event) {
+        if (event.getInventory().getHolder() instanceof VaultHolder holder) {
+            for (int slot : event.getRawSlots()) {
+                if (slot < event.getInventory().getSize()) {
+                    holder.markDirty(slot);
+                }
+            }
         }
-        Set<Enchantment> ench = PlayerVaults.getInstance().isEnchantmentBlocked(item);
-        if (!ench.isEmpty()) {
-            reasons.add(BlacklistedItemEvent.Reason.ENCHANTMENT);
-            responses.put(BlacklistedItemEvent.Reason.ENCHANTMENT, this.plugin.getTL().blockedItemWithEnchantments().title());
+    }
+
+    private boolean isBlocked(Player player, ItemStack item, VaultViewInfo info) {
+        ItemBlockRules rules = this.plugin.getBlockRules();
+        if (item == null || rules.test(item) == null) {
+            return false;
         }
-        if (!reasons.isEmpty()) {
-            BlacklistedItemEvent event = new BlacklistedItemEvent(player, item, reasons, info.getVaultName(), info.getNumber());
-            Bukkit.getPluginManager().callEvent(event);
-            if (!event.isCancelled()) {
-                responses.get(event.getReasons().getFirst()).send(player);
-                return true;
-            }
+        BlacklistedItemEvent event = new BlacklistedItemEvent(player, item, rules.getReasons(item), info.getVaultName(), info.getNumber());
+        Bukkit.getPluginManager().callEvent(event);
+        if (!event.isCancelled()) {
+            this.response(event.getReasons().getFirst(), item).send(player);
+            return true;
         }
         return false;
     }
-}
\ No newline at end of file
+
+    private Translation.TL.Builder response(BlacklistedItemEvent.Reason reason, ItemStack item) {
+        return switch (reason) {
+            case HAS_MODEL_DATA -> this.plugin.getTL().blockedItemWithModelData().title();
+            case HAS_NO_MODEL_DATA -> this.plugin.getTL().blockedItemWithoutModelData().title();
+            case TYPE -> this.plugin.getTL().blockedItem().title().with("item", item.getType().name());
+            case ENCHANTMENT -> this.plugin.getTL().blockedItemWithEnchantments().title();
+            case NAME, LORE, NBT -> this.plugin.getTL().blockedItemByPattern().title();
+        };
+    }
+}
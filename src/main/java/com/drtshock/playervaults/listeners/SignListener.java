@@ -21,7 +21,6 @@ package com.drtshock.playervaults.listeners;
 import com.drtshock.playervaults.PlayerVaults;
 import com.drtshock.playervaults.util.Permission;
 import com.drtshock.playervaults.vaultmanagement.VaultOperations;
-import com.drtshock.playervaults.vaultmanagement.VaultViewInfo;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.OfflinePlayer;
@@ -37,6 +36,8 @@ import org.bukkit.event.entity.EntityChangeBlockEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
 import org.bukkit.inventory.InventoryHolder;
 
+import java.util.function.Consumer;
+
 public class SignListener implements Listener {
     private final PlayerVaults plugin;
 
@@ -60,7 +61,7 @@ public class SignListener implements Listener {
         }
         Block block = event.getClickedBlock();
         if (event.getAction() == Action.RIGHT_CLICK_BLOCK) {
-            if (PlayerVaults.getInstance().getInVault().containsKey(player.getUniqueId().toString())) {
+            if (PlayerVaults.getInstance().getSessions().isViewing(player.getUniqueId())) {
                 // Different inventories that we don't want the player to open.
                 if (isInvalidBlock(block)) {
                     event.setCancelled(true);
@@ -106,7 +107,7 @@ public class SignListener implements Listener {
                 int z = l.getBlockZ();
                 if (plugin.getSigns().getKeys(false).contains(world + ";;" + x + ";;" + y + ";;" + z)) {
                     PlayerVaults.debug("Player " + player.getName() + " clicked sign at world(" + x + "," + y + "," + z + ")");
-                    if (PlayerVaults.getInstance().getInVault().containsKey(player.getUniqueId().toString())) {
+                    if (PlayerVaults.getInstance().getSessions().isViewing(player.getUniqueId())) {
                         // don't let them open another vault.
                         PlayerVaults.debug("Player " + player.getName() + " denied sign vault because already in a vault!");
                         return;
@@ -123,23 +124,21 @@ public class SignListener implements Listener {
                             this.plugin.getTL().vaultDoesNotExist().title().send(player);
                             return;
                         }
-                        if (self) {
-                            // We already checked that they can use signs, now lets check if they have this many vaults.
-                            if (VaultOperations.openOwnVault(player, numS, false)) {
-                                PlayerVaults.getInstance().getInVault().put(player.getUniqueId().toString(), new VaultViewInfo(player.getUniqueId().toString(), num));
+                        Consumer<Boolean> callback = opened -> {
+                            if (opened) {
+                                PlayerVaults.debug("Player " + player.getName() + " succeeded in opening sign vault");
+                                this.plugin.getTL().openWithSign().title().with("vault", String.valueOf(num)).with("player", owner).send(player);
                             } else {
                                 PlayerVaults.debug("Player " + player.getName() + " failed to open sign vault!");
-                                return;
-                            }
-                        } else {
-                            if (!VaultOperations.openOtherVault(player, owner, numS, false)) {
-                                PlayerVaults.debug("Player " + player.getName() + " failed to open sign vault!");
-                                return;
                             }
+                        };
+                        // We already checked that they can use signs, for their own vaults lets check if they have this many.
+                        boolean loading = self ? VaultOperations.openOwnVault(player, numS, false, callback) : VaultOperations.openOtherVault(player, owner, numS, false, callback);
+                        if (!loading) {
+                            PlayerVaults.debug("Player " + player.getName() + " failed to open sign vault!");
+                            return;
                         }
-                        PlayerVaults.debug("Player " + player.getName() + " succeeded in opening sign vault");
                         event.setCancelled(true);
-                        this.plugin.getTL().openWithSign().title().with("vault", String.valueOf(num)).with("player", owner).send(player);
                     } else {
                         PlayerVaults.debug("Player " + player.getName() + " no sign perms!");
                         this.plugin.getTL().noPerms().title().send(player);
@@ -22,27 +22,27 @@ import com.drtshock.playervaults.PlayerVaults;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
-import org.bukkit.scheduler.BukkitRunnable;
-
-import java.util.UUID;
 
 public class VaultPreloadListener implements Listener {
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerJoin(PlayerJoinEvent event) {
         PlayerVaults.getInstance().updateNotification(event.getPlayer());
-        final UUID uuid = event.getPlayer().getUniqueId();
-        new BukkitRunnable() {
-            @Override
-            public void run() {
-                PlayerVaults.getInstance().getVaultManager().cachePlayerVault(uuid.toString());
-            }
-        }.runTaskAsynchronously(PlayerVaults.getInstance());
+        PlayerVaults.getInstance().getPermissionResolver().invalidate(event.getPlayer().getUniqueId());
+        PlayerVaults.getInstance().getVaultManager().cachePlayerVault(event.getPlayer().getUniqueId().toString());
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerQuit(PlayerQuitEvent event) {
+        PlayerVaults.getInstance().getPermissionResolver().invalidate(event.getPlayer().getUniqueId());
         PlayerVaults.getInstance().getVaultManager().removeCachedPlayerVault(event.getPlayer().getUniqueId().toString());
     }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldChange(PlayerChangedWorldEvent event) {
+        // Permission plugins may grant different permissions per world
+        PlayerVaults.getInstance().getPermissionResolver().invalidate(event.getPlayer().getUniqueId());
+    }
 }
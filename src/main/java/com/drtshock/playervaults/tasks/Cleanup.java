@@ -41,6 +41,9 @@ public class Cleanup implements Runnable {
         long time = System.currentTimeMillis();
         for (File file : directory.listFiles()) {
             if (file.isDirectory()) {
+                if (!file.getName().equals("backups")) {
+                    cleanupHolderDirectory(file, time);
+                }
                 continue;
             }
             if (time - file.lastModified() > diff) {
@@ -49,4 +52,22 @@ public class Cleanup implements Runnable {
             }
         }
     }
+
+    // Binary storage keeps one directory per holder, which counts as touched when any vault in it was.
+    private void cleanupHolderDirectory(File holderDirectory, long time) {
+        File[] files = holderDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (time - file.lastModified() <= diff) {
+                return;
+            }
+        }
+        PlayerVaults.getInstance().getLogger().info("Deleting vault directory (cleanup): " + holderDirectory.getName());
+        for (File file : files) {
+            file.delete();
+        }
+        holderDirectory.delete();
+    }
 }
@@ -1,31 +1,185 @@
 package com.drtshock.playervaults.vaultmanagement;
 
 import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.vaultmanagement.storage.LazyVaultContents;
 import dev.kitteh.cardboardbox.CardboardBox;
-import org.bukkit.Material;
+import org.bukkit.Bukkit;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
 import org.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
 
-import java.io.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 import java.util.logging.Level;
 
+/**
+ * Turns vault contents into bytes and back.
+ * <p>
+ * Contents are written as a marker ({@code int}), the server data version they were written with ({@code int}), the
+ * slot count ({@code int}), a bitmap of the occupied slots, and the length ({@code int}) and bytes of each occupied
+ * slot's item. Older data, either without the data version or starting with the slot count and holding every slot,
+ * empty ones included, is still read. Its data version is taken as 0, so it counts as outdated.
+ * <p>
+ * Items of an older data version get upgraded by the server every time they are read, see
+ * {@link LazyVaultContents#isOutdated()}.
+ * <p>
+ * Serializing goes through a buffer kept per thread. Storages that can write a {@link ByteBuffer} directly should use
+ * {@link #toBuffer(Inventory, String)}, which hands out that buffer without copying it.
+ */
 public class CardboardBoxSerialization {
+    /**
+     * Contents of a vault without any data. Shared, never modify it.
+     */
+    public static final ItemStack[] EMPTY = new ItemStack[0];
+    private static final int SPARSE_MAGIC = 0x50565350; // PVSP
+    private static final int VERSIONED_MAGIC = 0x50565356; // PVSV
+    private static final int UNKNOWN_DATA_VERSION = 0;
+    private static final byte[] NO_ITEM = new byte[0];
+    private static final ThreadBuffer BUFFER = new ThreadBuffer();
+    private static volatile ItemCache itemCache = new ItemCache(0);
+    private static volatile int dataVersion = -1;
+
+    public static void setItemCache(ItemCache itemCache) {
+        CardboardBoxSerialization.itemCache = itemCache;
+    }
+
+    public static ItemCache getItemCache() {
+        return itemCache;
+    }
+
+    /**
+     * Gets the data version of the running server, which new data is written with.
+     *
+     * @return the data version
+     */
+    @SuppressWarnings("deprecation")
+    public static int getDataVersion() {
+        int version = dataVersion;
+        if (version < 0) {
+            version = Bukkit.getUnsafe().getDataVersion();
+            dataVersion = version;
+        }
+        return version;
+    }
+
     public static String toStorage(Inventory inventory, String target) {
+        return Base64Coder.encodeLines(toBytes(inventory, target));
+    }
+
+    public static byte[] toBytes(Inventory inventory, String target) {
+        return toArray(toBuffer(inventory, target));
+    }
+
+    /**
+     * Serializes an inventory the same way as {@link #toBytes(Inventory, String)}, into this thread's buffer.
+     *
+     * @return the serialized inventory, only valid until this thread serializes something else
+     */
+    public static ByteBuffer toBuffer(Inventory inventory, String target) {
         try {
-            return Base64Coder.encodeLines(writeInventory(inventory.getContents()));
+            return PayloadCodec.encode(serialize(inventory.getContents()));
         } catch (Exception e) {
             throw PlayerVaults.getInstance().addException(new IllegalStateException("Failed to save items for " + target, e));
         }
     }
 
+    /**
+     * Serializes only some slots of an inventory, into this thread's buffer. The result can be applied to the full
+     * serialized contents with {@link #applyPatches(ByteBuffer, List)}.
+     *
+     * @return the patch, only valid until this thread serializes something else
+     */
+    public static ByteBuffer toPatch(Inventory inventory, BitSet slots, String target) {
+        try {
+            return writePatch(inventory.getContents(), slots);
+        } catch (Exception e) {
+            throw PlayerVaults.getInstance().addException(new IllegalStateException("Failed to save items for " + target, e));
+        }
+    }
+
+    public static ItemStack[] fromBytes(byte[] data, String target) {
+        try {
+            return readInventory(data);
+        } catch (Exception e) {
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to load items for " + target, e));
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to load items for " + target, e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads items from the remaining bytes of a buffer, such as a slice of a memory-mapped file.
+     */
+    public static ItemStack[] fromBuffer(ByteBuffer data, String target) {
+        try {
+            return readInventory(data);
+        } catch (Exception e) {
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to load items for " + target, e));
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to load items for " + target, e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads contents like {@link #fromBuffer(ByteBuffer, String)}, but leaves the items serialized until used.
+     *
+     * @return the contents, or null if they could not be read
+     */
+    public static LazyVaultContents fromBufferLazy(ByteBuffer data, String target) {
+        try {
+            Slots read = readSlots(PayloadCodec.decode(data));
+            ByteBuffer[] slots = read.slots();
+            byte[][] raw = new byte[slots.length][];
+            for (int i = 0; i < raw.length; i++) {
+                if (slots[i] != null) {
+                    raw[i] = new byte[slots[i].remaining()];
+                    slots[i].get(raw[i]);
+                }
+            }
+            return LazyVaultContents.of(raw, read.dataVersion(), target);
+        } catch (Exception e) {
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to load items for " + target, e));
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to load items for " + target, e);
+            return null;
+        }
+    }
+
+    public static LazyVaultContents fromBytesLazy(byte[] data, String target) {
+        return fromBufferLazy(ByteBuffer.wrap(data), target);
+    }
+
+    public static LazyVaultContents fromStorageLazy(String data, String target) {
+        if (data == null || data.isEmpty()) {
+            return LazyVaultContents.of(EMPTY);
+        }
+        byte[] bytes;
+        try {
+            bytes = Base64Coder.decodeLines(data);
+        } catch (IllegalArgumentException e) {
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to load items for " + target + "\n" + data, e));
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to load items for " + target, e);
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Data: " + data);
+            return null;
+        }
+        return fromBytesLazy(bytes, target);
+    }
+
+    /**
+     * Deserializes a single item, as split up by the lazy readers. Identical items seen recently come from the
+     * {@link ItemCache}.
+     *
+     * @return an item of its own, safe to modify
+     */
+    public static ItemStack deserializeItem(byte[] data) {
+        return itemCache.get(data, CardboardBox::deserializeItem);
+    }
+
     public static ItemStack[] fromStorage(String data, String target) {
         if (data == null || data.isEmpty()) {
-            ItemStack[] i = new ItemStack[6 * 9];
-            for (int x = 0; x < i.length; x++) {
-                i[x] = new ItemStack(Material.AIR);
-            }
-            return i;
+            return EMPTY;
         }
         try {
             return readInventory(Base64Coder.decodeLines(data));
@@ -38,27 +192,163 @@ public class CardboardBoxSerialization {
     }
 
     public static byte[] writeInventory(ItemStack[] contents) throws IOException {
-        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(bytes);
-        out.writeInt(contents.length);
-        for (ItemStack content : contents) {
-            byte[] item = CardboardBox.serializeItem(content);
-            out.writeInt(item.length);
-            out.write(item);
+        return toArray(serialize(contents));
+    }
+
+    private static ByteBuffer serialize(ItemStack[] contents) {
+        int bitmapLength = bitmapLength(contents.length);
+        ByteBuffer out = BUFFER.ensure(BUFFER.get(), 4 + 4 + 4 + bitmapLength);
+        out.putInt(VERSIONED_MAGIC).putInt(getDataVersion()).putInt(contents.length);
+        for (int i = 0; i < bitmapLength; i++) {
+            int bits = 0;
+            for (int slot = i * 8; slot < Math.min(i * 8 + 8, contents.length); slot++) {
+                if (!isEmpty(contents[slot])) {
+                    bits |= 1 << slot % 8;
+                }
+            }
+            out.put((byte) bits);
+        }
+        for (int slot = 0; slot < contents.length; slot++) {
+            if (isEmpty(contents[slot])) {
+                continue;
+            }
+            byte[] item = CardboardBox.serializeItem(contents[slot]);
+            out = BUFFER.ensure(out, 4 + item.length);
+            out.putInt(item.length).put(item);
+        }
+        return out.flip();
+    }
+
+    private static ByteBuffer writePatch(ItemStack[] contents, BitSet slots) {
+        ByteBuffer out = BUFFER.get();
+        out.putInt(slots.cardinality());
+        for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+            ItemStack content = slot < contents.length ? contents[slot] : null;
+            // An empty item marks a slot that was emptied
+            byte[] item = isEmpty(content) ? NO_ITEM : CardboardBox.serializeItem(content);
+            out = BUFFER.ensure(out, 4 + 4 + item.length);
+            out.putInt(slot).putInt(item.length).put(item);
+        }
+        return out.flip();
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Replaces slots of serialized contents with those from patches, in order, without deserializing any items.
+     *
+     * @param contents contents as written by {@link #toBytes(Inventory, String)}
+     * @param patches  patches as written by {@link #toPatch(Inventory, BitSet, String)}
+     * @return the patched contents, uncompressed, with the data version of the original contents
+     * @throws IOException if the contents could not be decompressed
+     */
+    public static byte[] applyPatches(ByteBuffer contents, List<ByteBuffer> patches) throws IOException {
+        Slots read = readSlots(PayloadCodec.decode(contents));
+        ByteBuffer[] slots = read.slots();
+        for (ByteBuffer patch : patches) {
+            int count = patch.getInt();
+            for (int i = 0; i < count; i++) {
+                int slot = patch.getInt();
+                ByteBuffer item = readSlice(patch);
+                if (slot >= slots.length) {
+                    slots = Arrays.copyOf(slots, slot + 1);
+                }
+                slots[slot] = item;
+            }
+        }
+        BitSet occupied = new BitSet(slots.length);
+        int length = 4 + 4 + 4 + bitmapLength(slots.length);
+        for (int slot = 0; slot < slots.length; slot++) {
+            if (slots[slot] != null) {
+                occupied.set(slot);
+                length += 4 + slots[slot].remaining();
+            }
+        }
+        // The oldest items decide the data version, patches only replace some of them
+        ByteBuffer merged = ByteBuffer.allocate(length).putInt(VERSIONED_MAGIC).putInt(read.dataVersion()).putInt(slots.length);
+        merged.put(Arrays.copyOf(occupied.toByteArray(), bitmapLength(slots.length)));
+        for (ByteBuffer slot : slots) {
+            if (slot != null) {
+                merged.putInt(slot.remaining()).put(slot.duplicate());
+            }
+        }
+        return merged.array();
+    }
+
+    /**
+     * Counts the slots of serialized contents, empty ones included.
+     *
+     * @throws IOException if the contents could not be decompressed
+     */
+    public static int countSlots(ByteBuffer contents) throws IOException {
+        return readSlots(PayloadCodec.decode(contents)).slots().length;
+    }
+
+    /**
+     * Splits serialized contents into the bytes of each slot's item, null for empty slots.
+     */
+    private static Slots readSlots(ByteBuffer data) {
+        int marker = data.remaining() < 4 ? 0 : data.getInt(data.position());
+        if (marker != SPARSE_MAGIC && marker != VERSIONED_MAGIC) {
+            // Written before empty slots were skipped
+            ByteBuffer[] slots = new ByteBuffer[data.getInt()];
+            for (int slot = 0; slot < slots.length; slot++) {
+                slots[slot] = readSlice(data);
+            }
+            return new Slots(UNKNOWN_DATA_VERSION, slots);
         }
-        out.close();
-        return bytes.toByteArray();
+        data.getInt();
+        int version = marker == VERSIONED_MAGIC ? data.getInt() : UNKNOWN_DATA_VERSION;
+        ByteBuffer[] slots = new ByteBuffer[data.getInt()];
+        byte[] bitmap = new byte[bitmapLength(slots.length)];
+        data.get(bitmap);
+        BitSet occupied = BitSet.valueOf(bitmap);
+        for (int slot = occupied.nextSetBit(0); slot >= 0 && slot < slots.length; slot = occupied.nextSetBit(slot + 1)) {
+            slots[slot] = readSlice(data);
+        }
+        return new Slots(version, slots);
+    }
+
+    private static ByteBuffer readSlice(ByteBuffer data) {
+        int length = data.getInt();
+        if (length == 0) {
+            return null;
+        }
+        ByteBuffer slice = data.slice(data.position(), length);
+        data.position(data.position() + length);
+        return slice;
+    }
+
+    private static int bitmapLength(int slots) {
+        return (slots + 7) / 8;
+    }
+
+    private static boolean isEmpty(ItemStack item) {
+        return item == null || item.getType().isAir();
     }
 
     private static ItemStack[] readInventory(byte[] data) throws IOException {
-        DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
-        ItemStack[] contents = new ItemStack[input.readInt()];
+        return readInventory(ByteBuffer.wrap(data));
+    }
+
+    private static ItemStack[] readInventory(ByteBuffer data) throws IOException {
+        ByteBuffer[] slots = readSlots(PayloadCodec.decode(data)).slots();
+        ItemStack[] contents = new ItemStack[slots.length];
         for (int i = 0; i < contents.length; i++) {
-            int len = input.readInt();
-            byte[] itemBytes = new byte[len];
-            input.readFully(itemBytes);
-            contents[i] = CardboardBox.deserializeItem(itemBytes);
+            if (slots[i] != null) {
+                // CardboardBox needs an array of its own for each item
+                byte[] itemBytes = new byte[slots[i].remaining()];
+                slots[i].get(itemBytes);
+                contents[i] = deserializeItem(itemBytes);
+            }
         }
         return contents;
     }
+
+    private record Slots(int dataVersion, ByteBuffer[] slots) {
+    }
 }
@@ -23,12 +23,9 @@ import com.drtshock.playervaults.util.Permission;
 import net.milkbowl.vault.economy.Economy;
 import net.milkbowl.vault.economy.EconomyResponse;
 import org.bukkit.Bukkit;
-import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.RegisteredServiceProvider;
 
-import java.io.File;
-
 /**
  * A class that handles all economy operations.
  */
@@ -69,25 +66,37 @@ public class EconomyOperations {
      * @return The transaction success.
      */
     public static boolean payToOpen(Player player, int number) {
+        return chargeToOpen(player, number) >= 0;
+    }
+
+    /**
+     * Have a player pay to open a vault, keeping track of what was paid so it can be given back with
+     * {@link #refundOpen(Player, double)} if the vault does not end up opening.
+     *
+     * @param player The player to pay.
+     * @param number The vault number to open.
+     * @return The amount paid, or -1 if the transaction failed.
+     */
+    public static double chargeToOpen(Player player, int number) {
         if (!PlayerVaults.getInstance().isEconomyEnabled() || player.hasPermission(Permission.FREE)) {
-            return true;
+            return 0;
         }
 
         if (!PlayerVaults.getInstance().getVaultManager().vaultExists(player.getUniqueId().toString(), number)) {
-            return payToCreate(player);
+            return chargeToCreate(player);
         } else {
             if (PlayerVaults.getInstance().getConf().getEconomy().getFeeToOpen() == 0) {
-                return true;
+                return 0;
             }
             double cost = PlayerVaults.getInstance().getConf().getEconomy().getFeeToOpen();
             EconomyResponse resp = economy.withdrawPlayer(player, cost);
             if (resp.transactionSuccess()) {
                 PlayerVaults.getInstance().getTL().costToOpen().title().with("price", cost + "").send(player);
-                return true;
+                return cost;
             }
         }
 
-        return false;
+        return -1;
     }
 
     /**
@@ -97,18 +106,41 @@ public class EconomyOperations {
      * @return The transaction success
      */
     public static boolean payToCreate(Player player) {
+        return chargeToCreate(player) >= 0;
+    }
+
+    private static double chargeToCreate(Player player) {
         if (!PlayerVaults.getInstance().isEconomyEnabled() || PlayerVaults.getInstance().getConf().getEconomy().getFeeToCreate() == 0 || player.hasPermission(Permission.FREE)) {
-            return true;
+            return 0;
         }
 
         double cost = PlayerVaults.getInstance().getConf().getEconomy().getFeeToCreate();
         EconomyResponse resp = economy.withdrawPlayer(player, cost);
         if (resp.transactionSuccess()) {
             PlayerVaults.getInstance().getTL().costToCreate().title().with("price", cost + "").send(player);
-            return true;
+            return cost;
         }
 
-        return false;
+        return -1;
+    }
+
+    /**
+     * Give a player back what they paid to open a vault that did not open.
+     *
+     * @param player The player to receive the money.
+     * @param amount The amount paid, as returned by {@link #chargeToOpen(Player, int)}.
+     */
+    public static void refundOpen(Player player, double amount) {
+        if (amount <= 0 || economy == null) {
+            return;
+        }
+
+        EconomyResponse resp = economy.depositPlayer(player, amount);
+        if (resp.transactionSuccess()) {
+            PlayerVaults.getInstance().getTL().refundOpen().title().with("price", amount + "").send(player);
+        } else {
+            PlayerVaults.getInstance().getLogger().warning("Failed to refund " + amount + " to " + player.getName() + " for a vault that did not open: " + resp.errorMessage);
+        }
     }
 
     /**
@@ -123,14 +155,7 @@ public class EconomyOperations {
             return true;
         }
 
-        File playerFile = new File(PlayerVaults.getInstance().getVaultData(), player.getUniqueId() + ".yml");
-        if (playerFile.exists()) {
-            YamlConfiguration playerData = YamlConfiguration.loadConfiguration(playerFile);
-            if (playerData.getString("vault" + number) == null) {
-                PlayerVaults.getInstance().getTL().vaultDoesNotExist().title().send(player);
-                return false;
-            }
-        } else {
+        if (!PlayerVaults.getInstance().getVaultManager().vaultExists(player.getUniqueId().toString(), number)) {
             PlayerVaults.getInstance().getTL().vaultDoesNotExist().title().send(player);
             return false;
         }
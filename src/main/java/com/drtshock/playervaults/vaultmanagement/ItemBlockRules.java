@@ -0,0 +1,289 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.vaultmanagement;
+
+import com.drtshock.playervaults.config.file.Config;
+import com.drtshock.playervaults.events.BlacklistedItemEvent.Reason;
+import org.bukkit.ChatColor;
+import org.bukkit.Material;
+import org.bukkit.Registry;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+
+/**
+ * The item blocking rules from the config, compiled once so checking an item is cheap.
+ * <p>
+ * Materials are looked up in a bitset by ordinal. The item meta, which Bukkit copies on every access, is only fetched
+ * when a rule needs it. Instances are immutable, reloading the config compiles new rules.
+ */
+public final class ItemBlockRules {
+    /**
+     * Rules blocking nothing, for when item blocking is disabled.
+     */
+    public static final ItemBlockRules NONE = new ItemBlockRules(false, false, new BitSet(), new Enchantment[0], new int[0], new Pattern[0], new Pattern[0], new Pattern[0]);
+
+    // Checked in this order, the first reason found decides the message shown
+    private static final Reason[] ORDER = {Reason.HAS_MODEL_DATA, Reason.HAS_NO_MODEL_DATA, Reason.TYPE, Reason.ENCHANTMENT, Reason.NAME, Reason.LORE, Reason.NBT};
+
+    private final boolean blockWithModelData;
+    private final boolean blockWithoutModelData;
+    private final BitSet materials;
+    private final Enchantment[] enchantments;
+    // Inclusive ranges, as pairs of lowest and highest value
+    private final int[] modelData;
+    private final Pattern[] names;
+    private final Pattern[] lore;
+    private final Pattern[] nbt;
+    private final boolean needsMeta;
+
+    private ItemBlockRules(boolean blockWithModelData, boolean blockWithoutModelData, BitSet materials, Enchantment[] enchantments, int[] modelData, Pattern[] names, Pattern[] lore, Pattern[] nbt) {
+        this.blockWithModelData = blockWithModelData;
+        this.blockWithoutModelData = blockWithoutModelData;
+        this.materials = materials;
+        this.enchantments = enchantments;
+        this.modelData = modelData;
+        this.names = names;
+        this.lore = lore;
+        this.nbt = nbt;
+        this.needsMeta = blockWithModelData || blockWithoutModelData || enchantments.length > 0 || modelData.length > 0 || names.length > 0 || lore.length > 0 || nbt.length > 0;
+    }
+
+    /**
+     * Compiles the rules of the config, warning about entries that cannot be used.
+     *
+     * @param config the item blocking config
+     * @param logger where to warn
+     * @return the rules
+     */
+    public static ItemBlockRules compile(Config.Block config, Logger logger) {
+        if (!config.isEnabled()) {
+            return NONE;
+        }
+        boolean modelDataSupported = hasMethod("hasCustomModelData");
+        boolean blockWithModelData = false;
+        boolean blockWithoutModelData = false;
+        BitSet materials = new BitSet();
+        for (String s : config.getList()) {
+            if (s.equalsIgnoreCase("BLOCK_ALL_WITH_CUSTOM_MODEL_DATA")) {
+                blockWithModelData = modelDataSupported;
+            }
+            if (s.equalsIgnoreCase("BLOCK_ALL_WITHOUT_CUSTOM_MODEL_DATA")) {
+                blockWithoutModelData = modelDataSupported;
+            }
+            Material mat = Material.matchMaterial(s);
+            if (mat != null) {
+                materials.set(mat.ordinal());
+                logger.info("Added " + mat.name() + " to list of blocked materials.");
+            }
+        }
+
+        List<Enchantment> enchantments = new ArrayList<>();
+        boolean badEnch = false;
+        for (String s : config.getEnchantmentsBlocked()) {
+            Enchantment ench = Registry.ENCHANTMENT.match(s);
+            if (ench != null) {
+                enchantments.add(ench);
+            } else {
+                badEnch = true;
+                logger.warning("Invalid enchantment in config: " + s);
+            }
+        }
+        if (badEnch) {
+            logger.info("Valid enchantent options: " + Registry.ENCHANTMENT.stream().map(e -> e.getKey().toString()).collect(Collectors.joining(", ")));
+        }
+
+        List<Integer> modelData = new ArrayList<>();
+        for (String s : modelDataSupported ? config.getCustomModelData() : List.<String>of()) {
+            try {
+                // Either a single value or a range, skipping the first character so negative values still work
+                int dash = s.indexOf('-', 1);
+                int lowest = Integer.parseInt(s.substring(0, dash < 0 ? s.length() : dash).trim());
+                int highest = dash < 0 ? lowest : Integer.parseInt(s.substring(dash + 1).trim());
+                modelData.add(lowest);
+                modelData.add(highest);
+            } catch (NumberFormatException e) {
+                logger.warning("Invalid custom model data in config: " + s);
+            }
+        }
+
+        List<String> nbtPatterns = config.getNbtPatterns();
+        if (!nbtPatterns.isEmpty() && !hasMethod("getAsString")) {
+            logger.warning("This server cannot show item data as text, ignoring item data patterns.");
+            nbtPatterns = List.of();
+        }
+        return new ItemBlockRules(blockWithModelData, blockWithoutModelData, materials, enchantments.toArray(new Enchantment[0]),
+                modelData.stream().mapToInt(Integer::intValue).toArray(), patterns(config.getNamePatterns(), logger), patterns(config.getLorePatterns(), logger), patterns(nbtPatterns, logger));
+    }
+
+    private static boolean hasMethod(String name) {
+        try {
+            ItemMeta.class.getMethod(name);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static Pattern[] patterns(List<String> regexes, Logger logger) {
+        List<Pattern> patterns = new ArrayList<>();
+        for (String regex : regexes) {
+            try {
+                patterns.add(Pattern.compile(regex));
+            } catch (PatternSyntaxException e) {
+                logger.warning("Invalid pattern in config: " + regex + " (" + e.getDescription() + ")");
+            }
+        }
+        return patterns.toArray(new Pattern[0]);
+    }
+
+    /**
+     * Checks whether an item is blocked.
+     *
+     * @param item the item
+     * @return the first reason the item is blocked for, or null if it is not blocked
+     */
+    public Reason test(ItemStack item) {
+        ItemMeta meta = this.getMeta(item);
+        for (Reason reason : ORDER) {
+            if (this.matches(reason, item, meta)) {
+                return reason;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets every reason an item is blocked for. Meant for items {@link #test(ItemStack)} found blocked.
+     *
+     * @param item the item
+     * @return the reasons, in the order they are checked
+     */
+    public List<Reason> getReasons(ItemStack item) {
+        ItemMeta meta = this.getMeta(item);
+        List<Reason> reasons = new ArrayList<>();
+        for (Reason reason : ORDER) {
+            if (this.matches(reason, item, meta)) {
+                reasons.add(reason);
+            }
+        }
+        return reasons;
+    }
+
+    public boolean isBlocked(Material material) {
+        return this.materials.get(material.ordinal());
+    }
+
+    public boolean isBlockWithModelData() {
+        return this.blockWithModelData;
+    }
+
+    public boolean isBlockWithoutModelData() {
+        return this.blockWithoutModelData;
+    }
+
+    /**
+     * Gets the blocked materials.
+     *
+     * @return a new set of the materials
+     */
+    public Set<Material> getMaterials() {
+        Set<Material> materials = EnumSet.noneOf(Material.class);
+        for (Material material : Material.values()) {
+            if (this.materials.get(material.ordinal())) {
+                materials.add(material);
+            }
+        }
+        return materials;
+    }
+
+    /**
+     * Gets the blocked enchantments.
+     *
+     * @return a new list of the enchantments
+     */
+    public List<Enchantment> getEnchantments() {
+        return List.of(this.enchantments);
+    }
+
+    private ItemMeta getMeta(ItemStack item) {
+        return this.needsMeta && item.hasItemMeta() ? item.getItemMeta() : null;
+    }
+
+    private boolean matches(Reason reason, ItemStack item, ItemMeta meta) {
+        return switch (reason) {
+            case HAS_MODEL_DATA -> (this.blockWithModelData || this.modelData.length > 0) && meta != null && meta.hasCustomModelData() && (this.blockWithModelData || this.inModelData(meta.getCustomModelData()));
+            case HAS_NO_MODEL_DATA -> this.blockWithoutModelData && (meta == null || !meta.hasCustomModelData());
+            case TYPE -> this.materials.get(item.getType().ordinal());
+            case ENCHANTMENT -> meta != null && this.hasEnchantment(meta);
+            case NAME -> this.names.length > 0 && meta != null && meta.hasDisplayName() && find(this.names, ChatColor.stripColor(meta.getDisplayName()));
+            case LORE -> this.lore.length > 0 && meta != null && meta.hasLore() && this.hasLore(meta);
+            case NBT -> this.nbt.length > 0 && meta != null && find(this.nbt, meta.getAsString());
+        };
+    }
+
+    private boolean inModelData(int value) {
+        for (int i = 0; i < this.modelData.length; i += 2) {
+            if (value >= this.modelData[i] && value <= this.modelData[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasEnchantment(ItemMeta meta) {
+        for (Enchantment enchantment : this.enchantments) {
+            if (meta.hasEnchant(enchantment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasLore(ItemMeta meta) {
+        List<String> lines = meta.getLore();
+        if (lines != null) {
+            for (String line : lines) {
+                if (find(this.lore, ChatColor.stripColor(line))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean find(Pattern[] patterns, String text) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(text).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,97 @@
+package com.drtshock.playervaults.vaultmanagement;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Keeps recently deserialized items by a SHA-256 hash of their bytes, so identical items, like stacks of the same block
+ * or kit item, are only deserialized once.
+ * <p>
+ * The cached items are never handed out, every hit returns a clone. Once full, the least recently used item is dropped.
+ */
+public final class ItemCache {
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    });
+
+    private final int capacity;
+    // Guarded by itself, access ordered for LRU eviction
+    private final Map<ByteBuffer, ItemStack> items;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param capacity maximum number of items to keep, 0 or less to disable caching
+     */
+    public ItemCache(int capacity) {
+        this.capacity = capacity;
+        this.items = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, ItemStack> eldest) {
+                return this.size() > ItemCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Gets the item for the given bytes, deserializing them only if no identical bytes were seen recently.
+     *
+     * @param data         the serialized item
+     * @param deserializer turns the bytes into an item on a miss
+     * @return an item of its own, safe to modify
+     */
+    public ItemStack get(byte[] data, Function<byte[], ItemStack> deserializer) {
+        if (this.capacity <= 0) {
+            this.misses.increment();
+            return deserializer.apply(data);
+        }
+        ByteBuffer key = ByteBuffer.wrap(DIGESTS.get().digest(data));
+        ItemStack prototype;
+        synchronized (this.items) {
+            prototype = this.items.get(key);
+        }
+        if (prototype != null) {
+            this.hits.increment();
+            return prototype.clone();
+        }
+        this.misses.increment();
+        ItemStack item = deserializer.apply(data);
+        if (item != null) {
+            synchronized (this.items) {
+                this.items.put(key, item.clone());
+            }
+        }
+        return item;
+    }
+
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    public int size() {
+        synchronized (this.items) {
+            return this.items.size();
+        }
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+}
@@ -0,0 +1,178 @@
+package com.drtshock.playervaults.vaultmanagement;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optionally compresses serialized vaults.
+ * <p>
+ * Compressed payloads start with a header: magic ({@code int}), codec version ({@code byte}), flags ({@code byte}),
+ * dictionary id ({@code byte}) and the uncompressed length ({@code int}), followed by the deflated data. Uncompressed
+ * payloads have no header and are handed to {@link CardboardBoxSerialization} as is. That starts with its own magic,
+ * {@code PVSV} or {@code PVSP}, or with the slot count for data written before those existed, none of which can be
+ * {@code PVCP}, so data written before compression existed is read as is.
+ */
+public final class PayloadCodec {
+    private static final int MAGIC = 0x50564350; // PVCP
+    private static final byte VERSION = 1;
+    private static final byte FLAG_DEFLATED = 1;
+    private static final int HEADER_SIZE = 4 + 1 + 1 + 1 + 4;
+    private static final byte NO_DICTIONARY = 0;
+    private static final byte ITEM_DICTIONARY = 1;
+    // Common item NBT, most frequent last as deflate favours short distances. Never change it, add a new id instead.
+    private static final byte[] ITEM_DICTIONARY_BYTES = String.join("",
+            "BlockEntityTagCustomModelDataUnbreakableHideFlagsAttributeModifiersStoredEnchantmentsSkullOwnerTextures",
+            "PotionCustomPotionEffectsAmplifierDurationShowParticlesBasePotionItemsSlotRepairCostDamagedisplayLoreName",
+            "Enchantmentslvltagminecraft:stoneminecraft:dirtminecraft:cobblestoneminecraft:oak_logminecraft:torch",
+            "minecraft:iron_ingotminecraft:gold_ingotminecraft:diamondminecraft:emeraldminecraft:netherite_ingot",
+            "minecraft:diamond_swordminecraft:diamond_pickaxeminecraft:netherite_swordminecraft:netherite_pickaxe",
+            "minecraft:enchanted_bookminecraft:potionminecraft:shulker_boxminecraft:player_headminecraft:elytra",
+            "minecraft:sharpnessminecraft:efficiencyminecraft:unbreakingminecraft:mendingminecraft:fortune",
+            "minecraft:protectionminecraft:lootingminecraft:silk_touch",
+            "minecraft:stored_enchantmentsminecraft:attribute_modifiersminecraft:custom_model_dataminecraft:unbreakable",
+            "minecraft:potion_contentsminecraft:containerminecraft:profileminecraft:custom_dataminecraft:repair_cost",
+            "minecraft:damageminecraft:loreminecraft:custom_nameminecraft:enchantmentslevelsshow_in_tooltip",
+            "{\"italic\":false,\"color\":\"{\"text\":\"\",\"extra\":[{\"text\":\"",
+            "componentsDataVersioncountCountidminecraft:"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadBuffer ENCODE_BUFFER = new ThreadBuffer();
+    private static final ThreadBuffer DECODE_BUFFER = new ThreadBuffer();
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    private static volatile Mode mode = Mode.NONE;
+
+    private PayloadCodec() {
+    }
+
+    /**
+     * How new payloads are written. Payloads are always readable, whatever the mode.
+     */
+    public enum Mode {
+        NONE,
+        DEFLATE,
+        DICTIONARY;
+
+        /**
+         * Gets a mode by its name in the config.
+         *
+         * @param name the name, case-insensitive
+         * @return the mode, or {@link #NONE} if unknown
+         */
+        public static Mode fromConfig(String name) {
+            try {
+                return name == null ? NONE : valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                return NONE;
+            }
+        }
+    }
+
+    public static void setMode(Mode mode) {
+        PayloadCodec.mode = mode;
+    }
+
+    public static Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Compresses a payload according to the current mode, reading from the buffer's position to its limit. Payloads
+     * that would not get smaller are kept as they are.
+     *
+     * @param raw the serialized vault
+     * @return the payload to store, either the given buffer or this thread's buffer, only valid until this thread
+     * encodes something else
+     */
+    public static ByteBuffer encode(ByteBuffer raw) {
+        Mode mode = PayloadCodec.mode;
+        int length = raw.remaining();
+        if (mode == Mode.NONE || length <= HEADER_SIZE) {
+            return raw;
+        }
+        byte dictionary = mode == Mode.DICTIONARY ? ITEM_DICTIONARY : NO_DICTIONARY;
+        Deflater deflater = DEFLATERS.get();
+        try {
+            if (dictionary == ITEM_DICTIONARY) {
+                deflater.setDictionary(ITEM_DICTIONARY_BYTES);
+            }
+            deflater.setInput(raw.duplicate());
+            deflater.finish();
+            ByteBuffer out = ENCODE_BUFFER.ensure(ENCODE_BUFFER.get(), length);
+            // Only ever as large as the raw payload, anything larger is not worth it
+            out.limit(length);
+            out.putInt(MAGIC).put(VERSION).put(FLAG_DEFLATED).put(dictionary).putInt(length);
+            while (!deflater.finished()) {
+                if (!out.hasRemaining()) {
+                    return raw;
+                }
+                deflater.deflate(out);
+            }
+            return out.flip();
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Undoes {@link #encode(ByteBuffer)}, reading from the buffer's position to its limit.
+     *
+     * @param data the stored payload
+     * @return the serialized vault, the given buffer itself if it was not compressed, otherwise this thread's buffer,
+     * only valid until this thread decodes something else
+     * @throws IOException if the payload is compressed but corrupt or of an unknown version
+     */
+    public static ByteBuffer decode(ByteBuffer data) throws IOException {
+        if (data.remaining() < HEADER_SIZE || data.getInt(data.position()) != MAGIC) {
+            return data;
+        }
+        ByteBuffer header = data.duplicate();
+        header.getInt();
+        byte version = header.get();
+        byte flags = header.get();
+        byte dictionary = header.get();
+        int length = header.getInt();
+        if (version > VERSION) {
+            throw new IOException("Vault data was written by a newer version (codec " + version + ")");
+        }
+        if ((flags & FLAG_DEFLATED) == 0) {
+            return header.slice();
+        }
+        if (length < 0) {
+            throw new IOException("Corrupt vault data header");
+        }
+        Inflater inflater = INFLATERS.get();
+        try {
+            inflater.setInput(header);
+            ByteBuffer raw = DECODE_BUFFER.ensure(DECODE_BUFFER.get(), length);
+            raw.limit(length);
+            while (raw.hasRemaining()) {
+                if (inflater.inflate(raw) == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(dictionary(dictionary));
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new IOException("Vault data is shorter than its header says");
+                    }
+                }
+            }
+            return raw.flip();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed vault data", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    private static byte[] dictionary(byte id) throws IOException {
+        if (id == ITEM_DICTIONARY) {
+            return ITEM_DICTIONARY_BYTES;
+        }
+        throw new IOException("Unknown vault data dictionary " + id);
+    }
+}
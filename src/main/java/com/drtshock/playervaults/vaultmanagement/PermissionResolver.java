@@ -0,0 +1,149 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.vaultmanagement;
+
+import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.util.Permission;
+import org.bukkit.entity.Player;
+import org.bukkit.permissions.PermissionAttachmentInfo;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Works out how many vaults, and how large ones, a player's numbered permissions allow, and remembers it per player.
+ * <p>
+ * Instead of testing every possible permission, the player's effective permissions are scanned once for the amount and
+ * size prefixes. Operators and players with wildcard permissions are still tested one permission at a time, as only
+ * the permission plugin knows what those grant. Results are dropped on join, quit and world change, when permission
+ * plugins commonly recalculate, and otherwise expire after a few seconds to pick up permission changes made by
+ * commands.
+ */
+public final class PermissionResolver {
+    private static final long TIME_TO_LIVE = TimeUnit.SECONDS.toNanos(5);
+    private static final int MAX_SIZE = 6;
+
+    private record Resolved(int vaults, int size, long expires) {
+    }
+
+    private final Map<UUID, Resolved> resolved = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the highest vault number a player's amount permissions allow.
+     *
+     * @param player the player
+     * @return the number of vaults, 0 if none
+     */
+    public int getMaxVaults(Player player) {
+        return this.resolve(player).vaults();
+    }
+
+    /**
+     * Gets the highest number of rows a player's size permissions allow.
+     *
+     * @param player the player
+     * @return the rows, 0 if no size permission is set
+     */
+    public int getMaxRows(Player player) {
+        return this.resolve(player).size();
+    }
+
+    /**
+     * Forgets what was resolved for a player.
+     *
+     * @param uuid the player
+     */
+    public void invalidate(UUID uuid) {
+        this.resolved.remove(uuid);
+    }
+
+    /**
+     * Forgets what was resolved for every player, for when the config changed.
+     */
+    public void invalidateAll() {
+        this.resolved.clear();
+    }
+
+    private Resolved resolve(Player player) {
+        long now = System.nanoTime();
+        Resolved cached = this.resolved.get(player.getUniqueId());
+        if (cached != null && cached.expires() - now > 0) {
+            return cached;
+        }
+        Resolved fresh = this.scan(player, now + TIME_TO_LIVE);
+        // Offline players are never invalidated by quitting again
+        if (player.isOnline()) {
+            this.resolved.put(player.getUniqueId(), fresh);
+        }
+        return fresh;
+    }
+
+    private Resolved scan(Player player, long expires) {
+        int maxVaults = PlayerVaults.getInstance().getMaxVaultAmountPermTest();
+        if (!player.isOp()) {
+            int vaults = 0;
+            int size = 0;
+            boolean wildcard = false;
+            for (PermissionAttachmentInfo info : player.getEffectivePermissions()) {
+                if (!info.getValue()) {
+                    continue;
+                }
+                String permission = info.getPermission();
+                if (permission.startsWith(Permission.AMOUNT_PREFIX)) {
+                    int amount = parse(permission, Permission.AMOUNT_PREFIX.length());
+                    if (amount <= maxVaults) {
+                        vaults = Math.max(vaults, amount);
+                    }
+                } else if (permission.startsWith(Permission.SIZE_PREFIX)) {
+                    int rows = parse(permission, Permission.SIZE_PREFIX.length());
+                    if (rows <= MAX_SIZE) {
+                        size = Math.max(size, rows);
+                    }
+                }
+                wildcard |= permission.endsWith("*");
+            }
+            if (!wildcard) {
+                return new Resolved(vaults, size, expires);
+            }
+        }
+        int vaults = 0;
+        for (int x = maxVaults; x > 0 && vaults == 0; x--) {
+            if (player.hasPermission(Permission.amount(x))) {
+                vaults = x;
+            }
+        }
+        int size = 0;
+        for (int i = MAX_SIZE; i > 0 && size == 0; i--) {
+            if (player.hasPermission(Permission.size(i))) {
+                size = i;
+            }
+        }
+        return new Resolved(vaults, size, expires);
+    }
+
+    private static int parse(String permission, int start) {
+        try {
+            return Integer.parseInt(permission, start, permission.length(), 10);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
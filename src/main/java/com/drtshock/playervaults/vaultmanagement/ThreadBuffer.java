@@ -0,0 +1,47 @@
+package com.drtshock.playervaults.vaultmanagement;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A growable heap buffer kept per thread, so serializing a vault does not allocate a new one each time.
+ * <p>
+ * A buffer handed out is only valid until the same thread gets it again. Buffers that grew past
+ * {@value #MAX_RETAINED_SIZE} bytes are dropped the next time, so one huge vault does not pin its buffer forever.
+ */
+final class ThreadBuffer {
+    private static final int INITIAL_SIZE = 8 * 1024;
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+    private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(INITIAL_SIZE));
+
+    /**
+     * Gets this thread's buffer, cleared.
+     *
+     * @return the buffer
+     */
+    ByteBuffer get() {
+        ByteBuffer buffer = this.buffers.get();
+        if (buffer.capacity() > MAX_RETAINED_SIZE) {
+            buffer = ByteBuffer.allocate(INITIAL_SIZE);
+            this.buffers.set(buffer);
+        }
+        return buffer.clear();
+    }
+
+    /**
+     * Makes room for more bytes, replacing this thread's buffer with a larger copy if needed.
+     *
+     * @param buffer the buffer from {@link #get()} or an earlier call
+     * @param length number of bytes about to be put
+     * @return the buffer to keep writing to
+     */
+    ByteBuffer ensure(ByteBuffer buffer, int length) {
+        if (buffer.remaining() >= length) {
+            return buffer;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+        larger.put(buffer.flip());
+        this.buffers.set(larger);
+        return larger;
+    }
+}
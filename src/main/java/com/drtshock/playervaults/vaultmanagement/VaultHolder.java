@@ -18,8 +18,13 @@
 
 package com.drtshock.playervaults.vaultmanagement;
 
+import com.drtshock.playervaults.PlayerVaults;
+import org.bukkit.Bukkit;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.InventoryHolder;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.BitSet;
 
 /**
  * Represents a VaultHolder to assist in detection of Player Vaults from other plugins.
@@ -28,6 +33,10 @@ public class VaultHolder implements InventoryHolder {
 
     private final int vaultNumber;
     private Inventory inventory;
+    // Hash of each slot as it was last loaded or saved
+    private int[] saved;
+    // Slots changed by players since the last save, as seen by the click and drag listeners
+    private final BitSet touched = new BitSet();
 
     /**
      * Creates a new vault holder
@@ -38,6 +47,34 @@ public class VaultHolder implements InventoryHolder {
         this.vaultNumber = vaultNumber;
     }
 
+    /**
+     * Creates a vault inventory with a new holder and fills it with the given contents. If there are more contents
+     * than the inventory size, the items are packed into the available slots.
+     *
+     * @param vaultNumber the vault number
+     * @param size        the inventory size
+     * @param contents    the contents, may be null
+     * @return the new inventory
+     */
+    public static Inventory createInventory(int vaultNumber, int size, ItemStack[] contents) {
+        VaultHolder holder = new VaultHolder(vaultNumber);
+        Inventory inventory = Bukkit.createInventory(holder, size, PlayerVaults.getInstance().getVaultTitle(String.valueOf(vaultNumber)));
+        holder.setInventory(inventory);
+        if (contents != null) {
+            if (contents.length > size) {
+                for (ItemStack stack : contents) {
+                    if (stack != null) {
+                        inventory.addItem(stack);
+                    }
+                }
+            } else {
+                inventory.setContents(contents);
+            }
+        }
+        holder.markClean();
+        return inventory;
+    }
+
     /**
      * Gets the vault number this holder is currently using
      *
@@ -59,5 +96,109 @@ public class VaultHolder implements InventoryHolder {
      */
     public void setInventory(Inventory inventory) {
         this.inventory = inventory;
+        this.markClean();
+    }
+
+    /**
+     * Marks a slot as modified by a player, so it is saved when the vault is closed.
+     *
+     * @param slot the slot
+     */
+    public void markDirty(int slot) {
+        this.touched.set(slot);
+    }
+
+    /**
+     * Forgets earlier modifications, the current contents are taken as saved.
+     */
+    public void markClean() {
+        this.touched.clear();
+        this.saved = this.inventory == null ? null : hash(this.inventory.getContents());
+    }
+
+    /**
+     * Takes the changes to save. The changed slots keep counting as changed until {@link #markSaved(Changes)} is called
+     * once they are written, so a failed write does not lose them.
+     *
+     * @return the changes, with no slots if there are none
+     */
+    public Changes takeChanges() {
+        int[] current = this.inventory == null ? new int[0] : hash(this.inventory.getContents());
+        BitSet changed = this.changedSlots(current);
+        // Player changes made from now on belong to the next save
+        this.touched.clear();
+        return new Changes(changed, current);
+    }
+
+    /**
+     * Takes the slots of written changes as saved, with the contents they had when the changes were taken. Slots
+     * changed again since then keep counting as changed.
+     *
+     * @param changes the changes that were written
+     */
+    public void markSaved(Changes changes) {
+        if (this.saved == null || this.saved.length != changes.hashes().length) {
+            if (changes.slots().cardinality() == changes.hashes().length) {
+                this.saved = changes.hashes().clone();
+            }
+            return;
+        }
+        for (int slot = changes.slots().nextSetBit(0); slot >= 0 && slot < this.saved.length; slot = changes.slots().nextSetBit(slot + 1)) {
+            this.saved[slot] = changes.hashes()[slot];
+        }
+    }
+
+    /**
+     * Gets the slots that were changed since the vault was loaded or last saved: those marked by
+     * {@link #markDirty(int)}, and any other slot whose hash differs from the saved contents, such as slots filled by
+     * shift clicks or changed by other plugins. If the inventory was replaced by one of another size, every slot
+     * counts as changed.
+     *
+     * @return the changed slots, empty if there are none
+     */
+    public BitSet getChangedSlots() {
+        return this.inventory == null ? new BitSet() : this.changedSlots(hash(this.inventory.getContents()));
+    }
+
+    private BitSet changedSlots(int[] current) {
+        BitSet changed = new BitSet();
+        if (this.saved == null || this.saved.length != current.length) {
+            changed.set(0, current.length);
+            return changed;
+        }
+        changed.or(this.touched);
+        for (int slot = 0; slot < current.length; slot++) {
+            if (current[slot] != this.saved[slot]) {
+                changed.set(slot);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Gets whether the vault was changed since it was loaded or last saved.
+     *
+     * @return true if the vault needs saving
+     */
+    public boolean hasChanges() {
+        return !this.getChangedSlots().isEmpty();
+    }
+
+    /**
+     * Changes of a vault taken to be saved.
+     *
+     * @param slots  the changed slots
+     * @param hashes the hash of every slot at the time
+     */
+    public record Changes(BitSet slots, int[] hashes) {
+    }
+
+    private static int[] hash(ItemStack[] contents) {
+        int[] hashes = new int[contents.length];
+        for (int slot = 0; slot < contents.length; slot++) {
+            // Covers type, amount and meta, so items changed in place show up too, without keeping copies of them
+            hashes[slot] = contents[slot] == null || contents[slot].getType().isAir() ? 0 : contents[slot].hashCode();
+        }
+        return hashes;
     }
 }
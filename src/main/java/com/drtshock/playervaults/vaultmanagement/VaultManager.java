@@ -19,35 +19,125 @@
 package com.drtshock.playervaults.vaultmanagement;
 
 import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.vaultmanagement.storage.LazyVaultContents;
+import com.drtshock.playervaults.vaultmanagement.storage.VaultCache;
+import com.drtshock.playervaults.vaultmanagement.storage.VaultContents;
 import com.drtshock.playervaults.vaultmanagement.storage.VaultStorage;
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.Inventory;
-import org.bukkit.scheduler.BukkitRunnable;
 
+import java.util.BitSet;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 
 public class VaultManager {
     private final VaultStorage storage;
     private final PlayerVaults plugin;
+    private final VaultSaveQueue saveQueue;
+    private final VaultUpgrader upgrader;
+    // One party per load running in the background, plus one for stop() to wait on them
+    private final Phaser loads = new Phaser(1);
 
     public VaultManager(PlayerVaults plugin, VaultStorage storage) {
         this.storage = storage;
         this.plugin = plugin;
+        this.saveQueue = new VaultSaveQueue(storage, plugin.getConf().getStorage().getSaveDelay());
+        int upgradeRate = plugin.getConf().getStorage().getUpgradeRate();
+        if (upgradeRate > 0) {
+            this.upgrader = new VaultUpgrader(plugin, storage, saveQueue, upgradeRate);
+            this.upgrader.start();
+        } else {
+            this.upgrader = null;
+        }
     }
 
     /**
      * Saves the inventory to the specified player and vault number.
+     * The contents are copied right away and written to storage in the background.
      *
      * @param inventory The inventory to be saved.
      * @param target    The player.
      * @param number    The vault number.
      */
     public void saveVault(Inventory inventory, String target, int number) {
-        storage.saveVault(target, number, inventory);
+        saveVault(inventory, target, number, null);
+    }
+
+    private CompletableFuture<Void> saveVault(Inventory inventory, String target, int number, BitSet slots) {
+        Inventory snapshot = Bukkit.createInventory(null, inventory.getSize());
+        snapshot.setContents(inventory.getContents());
+        return saveQueue.queue(target, number, snapshot, slots);
+    }
+
+    /**
+     * Saves a vault opened by a player, unless it was not changed since it was loaded. Storages that support it
+     * only write the changed slots. The vault only counts as saved once the write succeeded, until then its changes
+     * are saved again by the next call.
+     *
+     * @param inventory The inventory to be saved.
+     * @param target    The player.
+     * @param number    The vault number.
+     * @return true if the vault was saved, false if there was nothing to save
+     */
+    public boolean saveVaultIfChanged(Inventory inventory, String target, int number) {
+        if (!(inventory.getHolder() instanceof VaultHolder holder)) {
+            saveVault(inventory, target, number, null);
+            return true;
+        }
+        VaultHolder.Changes changes = holder.takeChanges();
+        if (changes.slots().isEmpty()) {
+            PlayerVaults.debug("Vault " + number + " for " + target + " unchanged, not saving");
+            return false;
+        }
+        saveVault(inventory, target, number, changes.slots()).thenRun(() -> {
+            if (Bukkit.isPrimaryThread()) {
+                holder.markSaved(changes);
+            } else if (plugin.isEnabled()) {
+                plugin.getServer().getScheduler().runTask(plugin, () -> holder.markSaved(changes));
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Writes all pending saves, stops the background save thread and closes the storage.
+     */
+    public void shutdown() {
+        stop();
+        storage.close();
+    }
+
+    /**
+     * Writes all pending saves, stops the background save thread and waits for the loads in progress, but leaves the
+     * storage open. Used when reloading, so the storage can still be handed to a new manager if the new one fails to
+     * open.
+     */
+    public void stop() {
+        if (upgrader != null) {
+            upgrader.stop();
+        }
+        saveQueue.shutdown();
+        try {
+            loads.awaitAdvanceInterruptibly(loads.arrive(), 10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (TimeoutException e) {
+            plugin.getLogger().warning("Gave up waiting for " + loads.getUnarrivedParties() + " vault loads to finish");
+        }
+    }
+
+    public VaultStorage getStorage() {
+        return storage;
     }
 
     /**
@@ -65,13 +155,14 @@ public class VaultManager {
 
         String title = PlayerVaults.getInstance().getVaultTitle(String.valueOf(number));
         VaultViewInfo info = new VaultViewInfo(player.getUniqueId().toString(), number);
-        if (PlayerVaults.getInstance().getOpenInventories().containsKey(info.toString())) {
+        Inventory open = PlayerVaults.getInstance().getSessions().getInventory(info);
+        if (open != null) {
             PlayerVaults.debug("Already open");
-            return PlayerVaults.getInstance().getOpenInventories().get(info.toString());
+            return open;
         }
 
         String holder = player.getUniqueId().toString();
-        Inventory inv = storage.loadVault(holder, number, size);
+        Inventory inv = load(holder, number, size);
         if (inv == null) {
             PlayerVaults.debug("No vault matching number");
             VaultHolder vaultHolder = new VaultHolder(number);
@@ -82,6 +173,44 @@ public class VaultManager {
         return inv;
     }
 
+    /**
+     * Loads the player's vault without blocking the main thread. The contents are read and decoded on a worker
+     * thread, only the inventory itself is created on the main thread, right before it is handed to the callback.
+     *
+     * @param player   The holder of the vault.
+     * @param number   The vault number.
+     * @param size     The vault size.
+     * @param callback Called on the main thread with the vault, or null if it could not be loaded.
+     */
+    public void loadOwnVaultAsync(Player player, int number, int size, Consumer<Inventory> callback) {
+        int vaultSize = size % 9 != 0 ? PlayerVaults.getInstance().getDefaultVaultSize() : size;
+
+        PlayerVaults.debug("Loading self vault for " + player.getName() + " (" + player.getUniqueId() + ')');
+
+        String holder = player.getUniqueId().toString();
+        VaultViewInfo info = new VaultViewInfo(holder, number);
+        Inventory open = PlayerVaults.getInstance().getSessions().getInventory(info);
+        if (open != null) {
+            PlayerVaults.debug("Already open");
+            callback.accept(open);
+            return;
+        }
+
+        loadAsync(holder, number, vaultSize, contents -> {
+            // Someone may have opened it while it was loading
+            Inventory inv = PlayerVaults.getInstance().getSessions().getInventory(info);
+            if (inv == null) {
+                if (contents == null) {
+                    PlayerVaults.debug("No vault matching number");
+                    inv = VaultHolder.createInventory(number, vaultSize, null);
+                } else {
+                    inv = VaultHolder.createInventory(number, contents.size(), contents.contents());
+                }
+            }
+            callback.accept(inv);
+        }, () -> callback.accept(null));
+    }
+
     /**
      * Load the player's vault and return it.
      *
@@ -106,18 +235,94 @@ public class VaultManager {
         }
 
         VaultViewInfo info = new VaultViewInfo(name, number);
-        Inventory inv;
-        if (PlayerVaults.getInstance().getOpenInventories().containsKey(info.toString())) {
+        Inventory inv = PlayerVaults.getInstance().getSessions().getInventory(info);
+        if (inv != null) {
             PlayerVaults.debug("Already open");
-            inv = PlayerVaults.getInstance().getOpenInventories().get(info.toString());
-        } else {
-            inv = storage.loadVault(holder, number, size);
+            return inv;
+        }
+        return load(holder, number, size);
+    }
+
+    /**
+     * Loads another holder's vault without blocking the main thread.
+     *
+     * @param name     The holder of the vault.
+     * @param number   The vault number.
+     * @param size     The vault size.
+     * @param callback Called on the main thread with the vault, or null if it does not exist or could not be loaded.
+     * @see #loadOwnVaultAsync(Player, int, int, Consumer)
+     */
+    public void loadOtherVaultAsync(String name, int number, int size, Consumer<Inventory> callback) {
+        int vaultSize = size % 9 != 0 ? PlayerVaults.getInstance().getDefaultVaultSize() : size;
+
+        PlayerVaults.debug("Loading other vault for " + name);
+
+        String holder = name;
+
+        try {
+            UUID uuid = UUID.fromString(name);
+            OfflinePlayer offlinePlayer = Bukkit.getOfflinePlayer(uuid);
+            holder = offlinePlayer.getUniqueId().toString();
+        } catch (Exception e) {
+            // Not a player
+        }
+
+        VaultViewInfo info = new VaultViewInfo(name, number);
+        Inventory open = PlayerVaults.getInstance().getSessions().getInventory(info);
+        if (open != null) {
+            PlayerVaults.debug("Already open");
+            callback.accept(open);
+            return;
+        }
+
+        loadAsync(holder, number, vaultSize, contents -> {
+            Inventory inv = PlayerVaults.getInstance().getSessions().getInventory(info);
             if (inv == null) {
-                return null;
+                if (contents == null) {
+                    callback.accept(null);
+                    return;
+                }
+                inv = VaultHolder.createInventory(number, contents.size(), contents.contents());
             }
-            PlayerVaults.getInstance().getOpenInventories().put(info.toString(), inv);
+            callback.accept(inv);
+        }, () -> callback.accept(null));
+    }
+
+    private void loadAsync(String holder, int number, int size, Consumer<VaultContents> onLoad, Runnable onFail) {
+        long start = System.currentTimeMillis();
+        loads.register();
+        try {
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+                try {
+                    runLoad(holder, number, size, start, onLoad, onFail);
+                } finally {
+                    loads.arriveAndDeregister();
+                }
+            });
+        } catch (RuntimeException e) {
+            loads.arriveAndDeregister();
+            throw e;
         }
-        return inv;
+    }
+
+    private void runLoad(String holder, int number, int size, long start, Consumer<VaultContents> onLoad, Runnable onFail) {
+        VaultContents contents;
+        try {
+            contents = loadContents(holder, number, size);
+            if (contents != null) {
+                contents.contents(); // Deserializes every item here, not on the main thread
+                if (contents.items() != null && contents.items().isOutdated()) {
+                    PlayerVaults.debug("Vault " + number + " for " + holder + " has items of data version " + contents.items().getDataVersion() + ", upgraded while loading");
+                }
+            }
+        } catch (Exception e) {
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to load vault " + number + " for " + holder, e));
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to load vault " + number + " for " + holder, e);
+            plugin.getServer().getScheduler().runTask(plugin, onFail);
+            return;
+        }
+        PlayerVaults.debug("Loaded vault " + number + " for " + holder, start);
+        plugin.getServer().getScheduler().runTask(plugin, () -> onLoad.accept(contents));
     }
 
     /**
@@ -128,7 +333,37 @@ public class VaultManager {
      * @return The inventory of the specified holder and vault number. Can be null.
      */
     public Inventory getVault(String holder, int number) {
-        return storage.loadVault(holder, number, -1);
+        return load(holder, number, -1);
+    }
+
+    /**
+     * Gets the stored items of a vault without creating an inventory, so only the slots that are looked at get
+     * deserialized. Meant for searching or inspecting vaults, the items must not be modified.
+     *
+     * @param holder The holder of the vault.
+     * @param number The vault number.
+     * @return The contents, or null if the vault does not exist or could not be read.
+     */
+    public LazyVaultContents getContents(String holder, int number) {
+        VaultContents contents = loadContents(holder, number, -1);
+        return contents == null ? null : contents.items();
+    }
+
+    private Inventory load(String holder, int number, int size) {
+        VaultContents contents = loadContents(holder, number, size);
+        return contents == null ? null : VaultHolder.createInventory(number, contents.size(), contents.contents());
+    }
+
+    private VaultContents loadContents(String holder, int number, int size) {
+        Inventory pending = saveQueue.getPending(holder, number);
+        if (pending == null) {
+            return storage.loadContents(holder, number, size);
+        }
+        PlayerVaults.debug("Loading vault " + number + " for " + holder + " from pending save");
+        if (size <= 0 || size % 9 != 0) {
+            size = pending.getSize() % 9 == 0 ? pending.getSize() : PlayerVaults.getInstance().getDefaultVaultSize();
+        }
+        return new VaultContents(size, LazyVaultContents.of(pending.getContents()));
     }
 
     /**
@@ -139,7 +374,7 @@ public class VaultManager {
      * @return true if the vault and vault number exist, otherwise false.
      */
     public boolean vaultExists(String holder, int number) {
-        return storage.vaultExists(holder, number);
+        return saveQueue.getPending(holder, number) != null || storage.vaultExists(holder, number);
     }
 
     /**
@@ -149,11 +384,14 @@ public class VaultManager {
      * @return a set of Integers, which are player's vaults' numbers (fuck grammar).
      */
     public Set<Integer> getVaultNumbers(String holder) {
-        return storage.getVaultNumbers(holder);
+        Set<Integer> numbers = new HashSet<>(storage.getVaultNumbers(holder));
+        numbers.addAll(saveQueue.getPendingNumbers(holder));
+        return numbers;
     }
 
     public void deleteAllVaults(String holder) {
-        storage.deleteAllVaults(holder);
+        saveQueue.cancelAll(holder);
+        saveQueue.execute(() -> storage.deleteAllVaults(holder));
     }
 
     /**
@@ -164,12 +402,8 @@ public class VaultManager {
      * @param number The vault number.
      */
     public void deleteVault(CommandSender sender, final String holder, final int number) {
-        new BukkitRunnable() {
-            @Override
-            public void run() {
-                storage.deleteVault(holder, number);
-            }
-        }.runTaskAsynchronously(PlayerVaults.getInstance());
+        saveQueue.cancel(holder, number);
+        saveQueue.execute(() -> storage.deleteVault(holder, number));
 
         OfflinePlayer player = Bukkit.getPlayer(holder);
         if (player != null) {
@@ -180,15 +414,33 @@ public class VaultManager {
             }
         }
 
-        String vaultName = sender instanceof Player ? ((Player) sender).getUniqueId().toString() : holder;
-        PlayerVaults.getInstance().getOpenInventories().remove(new VaultViewInfo(vaultName, number).toString());
+        PlayerVaults.getInstance().getSessions().invalidate(new VaultViewInfo(holder, number));
     }
 
+    /**
+     * Caches a holder's vaults in the background. Runs after any pending writes for the holder.
+     *
+     * @param holder The vault holder.
+     */
     public void cachePlayerVault(String holder) {
-        storage.cachePlayerVault(holder);
+        saveQueue.execute(() -> storage.cachePlayerVault(holder));
     }
 
+    /**
+     * Drops a holder's cached vaults. Runs on the save thread too, so a cache still being filled is not left behind.
+     *
+     * @param holder The vault holder.
+     */
     public void removeCachedPlayerVault(String holder) {
-        storage.removePlayerCachedVault(holder);
+        saveQueue.execute(() -> storage.removePlayerCachedVault(holder));
+    }
+
+    /**
+     * Gets the cache of stored vaults of the current storage.
+     *
+     * @return the cache, or null if the storage does not cache vaults
+     */
+    public VaultCache getVaultCache() {
+        return storage.getCache();
     }
 }
@@ -28,18 +28,13 @@ import org.bukkit.inventory.CraftingInventory;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.InventoryView;
 
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
-import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 public class VaultOperations {
 
     private static final AtomicBoolean LOCKED = new AtomicBoolean(false);
-    private static final int secondsToLive = 2;
-    private static final Map<UUID, PlayerCount> countCache = new ConcurrentHashMap<>();
 
     /**
      * Gets whether or not player vaults are locked
@@ -80,6 +75,9 @@ public class VaultOperations {
      * @return Whether or not they have permission.
      */
     public static boolean checkPerms(CommandSender sender, int number) {
+        if (sender instanceof Player player) {
+            return PlayerVaults.getInstance().getPermissionResolver().getMaxVaults(player) >= number;
+        }
         for (int x = number; x <= PlayerVaults.getInstance().getMaxVaultAmountPermTest(); x++) {
             if (sender.hasPermission(Permission.amount(x))) {
                 return true;
@@ -115,36 +113,36 @@ public class VaultOperations {
         if (player == null || !player.isOnline()) {
             return 6 * 9;
         }
-        for (int i = 6; i != 0; i--) {
-            if (player.getPlayer().hasPermission(Permission.size(i))) {
-                return i * 9;
-            }
-        }
-        return PlayerVaults.getInstance().getDefaultVaultSize();
+        int rows = PlayerVaults.getInstance().getPermissionResolver().getMaxRows(player.getPlayer());
+        return rows > 0 ? rows * 9 : PlayerVaults.getInstance().getDefaultVaultSize();
     }
 
     /**
-     * Open a player's own vault.
+     * Open a player's own vault. The vault is loaded in the background and opened once ready.
      *
      * @param player The player to open to.
      * @param arg    The vault number to open.
      * @return Whether or not the player was allowed to open it.
      */
     public static boolean openOwnVault(Player player, String arg) {
-        return openOwnVaultE(player, arg, false, true);
+        return openOwnVaultE(player, arg, false, true, null);
     }
 
     public static boolean openOwnVaultSign(Player player, String arg) {
-        return openOwnVaultE(player, arg, true, false);
+        return openOwnVaultE(player, arg, true, false, null);
     }
 
-    private static boolean openOwnVaultE(Player player, String arg, boolean free, boolean send) {
+    private static boolean openOwnVaultE(Player player, String arg, boolean free, boolean send, Consumer<Boolean> callback) {
         if (isLocked()) {
             return false;
         }
         if (player.isSleeping() || player.isDead() || !player.isOnline()) {
             return false;
         }
+        if (isLoading(player)) {
+            PlayerVaults.debug(String.format("Denied opening vault %s for %s, still loading another one.", arg, player.getName()));
+            return false;
+        }
         int number;
         try {
             number = Integer.parseInt(arg);
@@ -157,27 +155,32 @@ public class VaultOperations {
         }
 
         if (checkPerms(player, number)) {
-            if (free || EconomyOperations.payToOpen(player, number)) {
-                Inventory inv = PlayerVaults.getInstance().getVaultManager().loadOwnVault(player, number, getMaxVaultSize(player));
-                if (inv == null) {
-                    PlayerVaults.debug(String.format("Failed to open null vault %d for %s. This is weird.", number, player.getName()));
-                    return false;
-                }
-
-                player.openInventory(inv);
-
-                // Check if the inventory was actually opened
-                if (player.getOpenInventory().getTopInventory() instanceof CraftingInventory || player.getOpenInventory().getTopInventory() == null) {
-                    PlayerVaults.debug(String.format("Cancelled opening vault %s for %s from an outside source.", arg, player.getName()));
-                    return false; // inventory open event was cancelled.
-                }
-
-                VaultViewInfo info = new VaultViewInfo(player.getUniqueId().toString(), number);
-                PlayerVaults.getInstance().getOpenInventories().put(info.toString(), inv);
-
-                if (send) {
-                    PlayerVaults.getInstance().getTL().openVault().title().with("vault", arg).send(player);
-                }
+            double paid = free ? 0 : EconomyOperations.chargeToOpen(player, number);
+            if (paid >= 0) {
+                UUID uuid = player.getUniqueId();
+                VaultViewInfo info = new VaultViewInfo(uuid.toString(), number);
+                PlayerVaults.getInstance().getSessions().startLoading(uuid, info);
+                PlayerVaults.getInstance().getVaultManager().loadOwnVaultAsync(player, number, getMaxVaultSize(player), inv -> {
+                    boolean opened = false;
+                    if (inv == null) {
+                        PlayerVaults.debug(String.format("Failed to open null vault %d for %s. This is weird.", number, player.getName()));
+                    } else if (show(player, inv, arg)) {
+                        PlayerVaults.getInstance().getSessions().open(uuid, info, inv);
+
+                        if (send) {
+                            PlayerVaults.getInstance().getTL().openVault().title().with("vault", arg).send(player);
+                        }
+                        opened = true;
+                    }
+                    if (!opened) {
+                        // Charged before loading, but nothing was opened
+                        EconomyOperations.refundOpen(player, paid);
+                    }
+                    PlayerVaults.getInstance().getSessions().finishLoading(uuid);
+                    if (callback != null) {
+                        callback.accept(opened);
+                    }
+                });
                 return true;
             } else {
                 PlayerVaults.getInstance().getTL().insufficientFunds().title().send(player);
@@ -198,8 +201,22 @@ public class VaultOperations {
      * @return Whether or not the player was allowed to open it.
      */
     public static boolean openOwnVault(Player player, String arg, boolean isCommand) {
+        return openOwnVault(player, arg, isCommand, null);
+    }
+
+    /**
+     * Open a player's own vault. If player is using a command, they'll need the required permission.
+     *
+     * @param player    The player to open to.
+     * @param arg       The vault number to open.
+     * @param isCommand - if player is opening via a command or not.
+     * @param callback  Called on the main thread with whether the vault was opened, once it has loaded. Only called
+     *                  if this returned true, may be null.
+     * @return Whether or not the player was allowed to open it, and loading was started.
+     */
+    public static boolean openOwnVault(Player player, String arg, boolean isCommand, Consumer<Boolean> callback) {
         if (!isCommand || player.hasPermission(Permission.COMMANDS_USE)) {
-            return openOwnVault(player, arg);
+            return openOwnVaultE(player, arg, false, true, callback);
         }
         PlayerVaults.getInstance().getTL().noPerms().title().send(player);
         return false;
@@ -218,6 +235,21 @@ public class VaultOperations {
     }
 
     public static boolean openOtherVault(Player player, String vaultOwner, String arg, boolean send) {
+        return openOtherVault(player, vaultOwner, arg, send, null);
+    }
+
+    /**
+     * Open another player's vault. The vault is loaded in the background and opened once ready.
+     *
+     * @param player     The player to open to.
+     * @param vaultOwner The name of the vault owner.
+     * @param arg        The vault number to open.
+     * @param send       Whether to tell the player the vault was opened.
+     * @param callback   Called on the main thread with whether the vault was opened, once it has loaded. Only called
+     *                   if this returned true, may be null.
+     * @return Whether or not loading the vault was started.
+     */
+    public static boolean openOtherVault(Player player, String vaultOwner, String arg, boolean send, Consumer<Boolean> callback) {
         if (isLocked()) {
             return false;
         }
@@ -226,9 +258,14 @@ public class VaultOperations {
             return false;
         }
 
+        if (isLoading(player)) {
+            PlayerVaults.debug(String.format("Denied opening vault %s for %s, still loading another one.", arg, player.getName()));
+            return false;
+        }
+
         long time = System.currentTimeMillis();
 
-        int number = 0;
+        int number;
         try {
             number = Integer.parseInt(arg);
             if (number < 1) {
@@ -237,41 +274,77 @@ public class VaultOperations {
             }
         } catch (NumberFormatException nfe) {
             PlayerVaults.getInstance().getTL().mustBeNumber().title().send(player);
+            return false;
         }
 
-        Inventory inv = PlayerVaults.getInstance().getVaultManager().loadOtherVault(vaultOwner, number, getMaxVaultSize(vaultOwner));
-        String name = vaultOwner;
+        String name;
         try {
             OfflinePlayer offlinePlayer = Bukkit.getOfflinePlayer(UUID.fromString(vaultOwner));
             name = offlinePlayer.getName();
         } catch (Exception e) {
             // not a player
+            name = vaultOwner;
         }
+        String ownerName = name;
 
-        if (inv == null) {
-            PlayerVaults.getInstance().getTL().vaultDoesNotExist().title().send(player);
-        } else {
-            player.openInventory(inv);
+        UUID uuid = player.getUniqueId();
+        VaultViewInfo info = new VaultViewInfo(vaultOwner, number);
+        PlayerVaults.getInstance().getSessions().startLoading(uuid, info);
+        PlayerVaults.getInstance().getVaultManager().loadOtherVaultAsync(vaultOwner, number, getMaxVaultSize(vaultOwner), inv -> {
+            boolean opened = false;
+            if (inv == null) {
+                PlayerVaults.getInstance().getTL().vaultDoesNotExist().title().send(player);
+            } else if (show(player, inv, arg)) {
+                if (send) {
+                    PlayerVaults.getInstance().getTL().openOtherVault().title().with("vault", arg).with("player", ownerName).send(player);
+                }
+                PlayerVaults.debug("opening other vault", time);
 
-            // Check if the inventory was actually opened
-            if (player.getOpenInventory().getTopInventory() instanceof CraftingInventory || player.getOpenInventory().getTopInventory() == null) {
-                PlayerVaults.debug(String.format("Cancelled opening vault %s for %s from an outside source.", arg, player.getName()));
-                return false; // inventory open event was cancelled.
+                // Need to set ViewInfo for a third party vault for the opening player.
+                PlayerVaults.getInstance().getSessions().open(uuid, info, inv);
+                opened = true;
+            }
+            if (!opened) {
+                PlayerVaults.debug("opening other vault returning false", time);
             }
-            if (send) {
-                PlayerVaults.getInstance().getTL().openOtherVault().title().with("vault", arg).with("player", name).send(player);
+            PlayerVaults.getInstance().getSessions().finishLoading(uuid);
+            if (callback != null) {
+                callback.accept(opened);
             }
-            PlayerVaults.debug("opening other vault", time);
+        });
+        return true;
+    }
 
-            // Need to set ViewInfo for a third party vault for the opening player.
-            VaultViewInfo info = new VaultViewInfo(vaultOwner, number);
-            PlayerVaults.getInstance().getInVault().put(player.getUniqueId().toString(), info);
-            PlayerVaults.getInstance().getOpenInventories().put(player.getUniqueId().toString(), inv);
-            return true;
+    /**
+     * Gets whether a vault is being loaded for a player, who cannot open another one until it is done.
+     *
+     * @param player The player.
+     * @return true if a vault is loading
+     */
+    public static boolean isLoading(Player player) {
+        return PlayerVaults.getInstance().getSessions().isLoading(player.getUniqueId());
+    }
+
+    private static boolean show(Player player, Inventory inv, String arg) {
+        // Things may have changed while the vault was loading
+        if (isLocked() || !player.isOnline() || player.isDead()) {
+            PlayerVaults.debug(String.format("Not opening vault %s for %s, no longer possible.", arg, player.getName()));
+            return false;
         }
 
-        PlayerVaults.debug("opening other vault returning false", time);
-        return false;
+        if (PlayerVaults.getInstance().getSessions().isViewing(player.getUniqueId())) {
+            // Switching from one vault to another, close the current one so it is saved before the next one opens
+            player.closeInventory();
+        }
+
+        player.openInventory(inv);
+
+        // Check if the inventory was actually opened
+        if (player.getOpenInventory().getTopInventory() instanceof CraftingInventory || player.getOpenInventory().getTopInventory() == null) {
+            PlayerVaults.debug(String.format("Cancelled opening vault %s for %s from an outside source.", arg, player.getName()));
+            return false; // inventory open event was cancelled.
+        }
+        return true;
     }
 
     /**
@@ -369,27 +442,6 @@ public class VaultOperations {
     }
 
     public static int countVaults(Player player) {
-        UUID uuid = player.getUniqueId();
-        PlayerCount count = countCache.get(uuid);
-        if (count != null && count.time().isAfter(Instant.now().plus(secondsToLive, ChronoUnit.SECONDS))) {
-            return count.count;
-        }
-        int vaultCount = 0;
-        for (int x = 1; x <= PlayerVaults.getInstance().getMaxVaultAmountPermTest(); x++) {
-            if (player.hasPermission(Permission.amount(x))) {
-                vaultCount = x;
-            }
-        }
-        PlayerCount newCount = new PlayerCount(vaultCount, Instant.now());
-        countCache.put(uuid, newCount);
-        PlayerVaults.getInstance().getServer().getScheduler().runTaskLater(PlayerVaults.getInstance(), () -> {
-            if (countCache.get(uuid) == newCount) {
-                countCache.remove(uuid); // Do a lil cleanup to avoid the world's smallest memory leak
-            }
-        }, 20 * secondsToLive + 1);
-        return vaultCount;
-    }
-
-    private record PlayerCount(int count, Instant time) {
+        return PlayerVaults.getInstance().getPermissionResolver().getMaxVaults(player);
     }
 }
@@ -0,0 +1,361 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.vaultmanagement;
+
+import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.vaultmanagement.storage.DeltaVaultStorage;
+import com.drtshock.playervaults.vaultmanagement.storage.VaultStorage;
+import org.bukkit.inventory.Inventory;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Writes vault snapshots to storage on a background thread.
+ * <p>
+ * Saves of the same vault that arrive within the configured delay are combined, so only the latest snapshot is
+ * written. All storage work submitted here runs on a single thread, keeping writes to the same holder in order.
+ * <p>
+ * A save may list the slots that changed, which a {@link DeltaVaultStorage} uses to write only those. Combined saves
+ * write the slots changed by any of them.
+ * <p>
+ * Once no more writes are ready, the storage is flushed, so storages that defer syncing to disk sync a whole batch of
+ * saves at once. A snapshot only counts as written after that.
+ * <p>
+ * A snapshot that fails to write stays pending, so loads keep seeing it, and is retried with a growing delay until it
+ * is written or replaced by a newer one.
+ */
+public class VaultSaveQueue {
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+    private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis(5);
+
+    private final VaultStorage storage;
+    private final long delay;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Map<Key, Pending> pending = new ConcurrentHashMap<>();
+    // Written but not flushed yet, only touched by the save thread
+    private final List<Unflushed> unflushed = new ArrayList<>();
+
+    /**
+     * Creates a new save queue.
+     *
+     * @param storage the storage to write to
+     * @param delay   milliseconds to wait for further saves of a vault before writing it
+     */
+    public VaultSaveQueue(VaultStorage storage, long delay) {
+        this.storage = storage;
+        this.delay = Math.max(0, delay);
+        this.executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "PlayerVaults Save Thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Queues a snapshot to be saved. The snapshot must not be modified afterwards.
+     *
+     * @param holder   The vault holder.
+     * @param number   The vault number.
+     * @param snapshot A copy of the vault contents.
+     * @return a future completed once the snapshot, or a newer one of the same vault, has been written
+     */
+    public CompletableFuture<Void> queue(String holder, int number, Inventory snapshot) {
+        return this.queue(holder, number, snapshot, null);
+    }
+
+    /**
+     * Queues a snapshot to be saved. The snapshot must not be modified afterwards.
+     *
+     * @param holder   The vault holder.
+     * @param number   The vault number.
+     * @param snapshot A copy of the vault contents.
+     * @param slots    The slots changed since the vault was last saved, or null to save every slot.
+     * @return a future completed once the snapshot, or a newer one of the same vault, has been written. Cancelled if
+     * the save is dropped, never completed exceptionally as failed writes are retried.
+     */
+    public CompletableFuture<Void> queue(String holder, int number, Inventory snapshot, BitSet slots) {
+        if (this.executor.isShutdown()) {
+            Pending pending = new Pending(snapshot, slots, new CompletableFuture<>(), 0);
+            this.save(holder, number, pending);
+            this.flush();
+            return pending.written();
+        }
+        Key key = new Key(holder, number);
+        boolean[] added = new boolean[1];
+        Pending queued = this.pending.compute(key, (k, current) -> {
+            if (current == null) {
+                added[0] = true;
+                return new Pending(snapshot, slots, new CompletableFuture<>(), 0);
+            }
+            // Written together with the earlier snapshot, so whoever waits on that one waits on this one too
+            return new Pending(snapshot, merge(current.slots(), slots), current.written(), current.failures());
+        });
+        if (added[0]) {
+            this.schedule(key, this.delay);
+        }
+        return queued.written();
+    }
+
+    /**
+     * Gets the snapshot waiting to be written for a vault.
+     *
+     * @param holder The vault holder.
+     * @param number The vault number.
+     * @return the pending snapshot, or null if nothing is waiting to be written
+     */
+    public Inventory getPending(String holder, int number) {
+        Pending pending = this.pending.get(new Key(holder, number));
+        return pending == null ? null : pending.snapshot();
+    }
+
+    /**
+     * Gets the numbers of all vaults of a holder that are waiting to be written.
+     *
+     * @param holder The vault holder.
+     * @return a set of vault numbers, possibly empty
+     */
+    public Set<Integer> getPendingNumbers(String holder) {
+        Set<Integer> numbers = new HashSet<>();
+        for (Key key : this.pending.keySet()) {
+            if (key.holder().equals(holder)) {
+                numbers.add(key.number());
+            }
+        }
+        return numbers;
+    }
+
+    /**
+     * Drops a pending save, if any.
+     *
+     * @param holder The vault holder.
+     * @param number The vault number.
+     */
+    public void cancel(String holder, int number) {
+        Pending pending = this.pending.remove(new Key(holder, number));
+        if (pending != null) {
+            pending.written().cancel(false);
+        }
+    }
+
+    /**
+     * Drops all pending saves of a holder.
+     *
+     * @param holder The vault holder.
+     */
+    public void cancelAll(String holder) {
+        this.pending.entrySet().removeIf(entry -> {
+            if (entry.getKey().holder().equals(holder)) {
+                entry.getValue().written().cancel(false);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Runs a storage task on the save thread, after any writes already in progress.
+     * Runs it on the calling thread if the queue has been shut down.
+     *
+     * @param task The task to run.
+     */
+    public void execute(Runnable task) {
+        try {
+            this.executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    this.flushIfIdle();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * Stops the save thread and writes everything still pending on the calling thread.
+     */
+    public void shutdown() {
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                PlayerVaults.getInstance().getLogger().severe("Timed out waiting for vault saves to finish!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // The save thread is gone, anything it wrote but did not flush is flushed here
+        this.unflushed.clear();
+        for (Map.Entry<Key, Pending> entry : this.pending.entrySet()) {
+            this.save(entry.getKey().holder(), entry.getKey().number(), entry.getValue());
+        }
+        this.pending.clear();
+        this.flush();
+    }
+
+    private void schedule(Key key, long delay) {
+        try {
+            this.executor.schedule(() -> this.write(key), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the snapshot stays pending and is written by shutdown()
+        }
+    }
+
+    private void write(Key key) {
+        Pending snapshot = this.pending.get(key);
+        if (snapshot == null) {
+            return; // Cancelled
+        }
+        long start = System.currentTimeMillis();
+        CompletableFuture<Void> future;
+        try {
+            if (snapshot.slots() != null && this.storage instanceof DeltaVaultStorage delta) {
+                delta.saveSlots(key.holder(), key.number(), snapshot.snapshot(), snapshot.slots());
+                future = CompletableFuture.completedFuture(null);
+            } else {
+                future = this.storage.saveVaultAsync(key.holder(), key.number(), snapshot.snapshot());
+            }
+        } catch (Exception e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        if (future.isDone() && !future.isCompletedExceptionally()) {
+            // Written on this thread, done once the batch is flushed
+            this.unflushed.add(new Unflushed(key, snapshot, start));
+            this.flushIfIdle();
+            return;
+        }
+        // The snapshot stays pending until written, so loads keep seeing it
+        future.whenComplete((ignored, e) -> {
+            if (e != null) {
+                this.retry(key, e instanceof CompletionException ? e.getCause() : e);
+            } else {
+                this.written(key, snapshot, start);
+            }
+        });
+    }
+
+    private void flushIfIdle() {
+        if (this.unflushed.isEmpty() || this.executor.getQueue().peek() instanceof Delayed next && next.getDelay(TimeUnit.NANOSECONDS) <= 0) {
+            return; // More writes are ready, they join this batch
+        }
+        List<Unflushed> batch = new ArrayList<>(this.unflushed);
+        this.unflushed.clear();
+        try {
+            this.storage.flush();
+        } catch (RuntimeException e) {
+            for (Unflushed write : batch) {
+                this.retry(write.key(), e);
+            }
+            return;
+        }
+        for (Unflushed write : batch) {
+            this.written(write.key(), write.snapshot(), write.start());
+        }
+    }
+
+    private void written(Key key, Pending snapshot, long start) {
+        PlayerVaults.debug("Saving vault " + key.number() + " for " + key.holder(), start);
+        // Only forget the snapshot we wrote, a newer one may have been queued meanwhile
+        Pending newer = this.pending.computeIfPresent(key, (k, current) -> current == snapshot ? null : current);
+        if (newer == null) {
+            snapshot.written().complete(null);
+        } else {
+            this.schedule(key, this.delay);
+        }
+    }
+
+    private void retry(Key key, Throwable e) {
+        // Keeps the newest snapshot, which holds the slots of the failed one too
+        Pending failed = this.pending.computeIfPresent(key, (k, current) -> new Pending(current.snapshot(), current.slots(), current.written(), current.failures() + 1));
+        if (failed == null) {
+            return; // Cancelled meanwhile
+        }
+        long delay = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(failed.failures() - 1, 20));
+        if (failed.failures() == 1) {
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to save vault " + key.number() + " for " + key.holder(), e));
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to save vault " + key.number() + " for " + key.holder() + ", retrying in " + delay + "ms", e);
+        } else {
+            PlayerVaults.getInstance().getLogger().warning("Failed to save vault " + key.number() + " for " + key.holder() + " " + failed.failures() + " times, retrying in " + delay + "ms: " + e);
+        }
+        this.schedule(key, delay);
+    }
+
+    private void save(String holder, int number, Pending snapshot) {
+        long start = System.currentTimeMillis();
+        try {
+            if (snapshot.slots() != null && this.storage instanceof DeltaVaultStorage delta) {
+                delta.saveSlots(holder, number, snapshot.snapshot(), snapshot.slots());
+            } else {
+                this.storage.saveVault(holder, number, snapshot.snapshot());
+            }
+            snapshot.written().complete(null);
+        } catch (Exception e) {
+            this.failed(holder, number, e);
+            snapshot.written().cancel(false);
+        }
+        PlayerVaults.debug("Saving vault " + number + " for " + holder, start);
+    }
+
+    private void flush() {
+        try {
+            this.storage.flush();
+        } catch (RuntimeException e) {
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to flush vault saves", e));
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to flush vault saves", e);
+        }
+    }
+
+    private void failed(String holder, int number, Throwable e) {
+        PlayerVaults.getInstance().addException(new IllegalStateException("Failed to save vault " + number + " for " + holder, e));
+        PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to save vault " + number + " for " + holder, e);
+    }
+
+    private static BitSet merge(BitSet first, BitSet second) {
+        if (first == null || second == null) {
+            return null; // Saving everything already covers the other
+        }
+        BitSet merged = (BitSet) first.clone();
+        merged.or(second);
+        return merged;
+    }
+
+    private record Key(String holder, int number) {
+    }
+
+    private record Pending(Inventory snapshot, BitSet slots, CompletableFuture<Void> written, int failures) {
+    }
+
+    private record Unflushed(Key key, Pending snapshot, long start) {
+    }
+}
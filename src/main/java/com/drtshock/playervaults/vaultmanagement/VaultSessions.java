@@ -0,0 +1,266 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.vaultmanagement;
+
+import com.drtshock.playervaults.PlayerVaults;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of which vaults are open, which players are viewing them, and which players are waiting for a vault to
+ * load.
+ * <p>
+ * Each open vault has one {@link Session}, shared by everyone viewing it, so they all see the same inventory and it is
+ * only saved once the last viewer is gone. Viewers that vanish without closing the vault, for instance because another
+ * plugin swapped their inventory, are reclaimed by {@link #sweep(VaultManager)}.
+ */
+public final class VaultSessions {
+
+    public enum State {
+        /**
+         * Being loaded for a player, there is no inventory yet.
+         */
+        LOADING,
+        /**
+         * Open for at least one viewer.
+         */
+        OPEN,
+        /**
+         * The last viewer left and the vault is being saved.
+         */
+        SAVING
+    }
+
+    public static final class Session {
+        private final VaultViewInfo vault;
+        private final Set<UUID> viewers = ConcurrentHashMap.newKeySet();
+        private volatile Inventory inventory;
+        private volatile State state = State.LOADING;
+        private volatile boolean deleted;
+
+        private Session(VaultViewInfo vault) {
+            this.vault = vault;
+        }
+
+        public VaultViewInfo getVault() {
+            return this.vault;
+        }
+
+        /**
+         * Gets the inventory of the vault.
+         *
+         * @return the inventory, or null while loading
+         */
+        public Inventory getInventory() {
+            return this.inventory;
+        }
+
+        public State getState() {
+            return this.state;
+        }
+
+        public Set<UUID> getViewers() {
+            return Collections.unmodifiableSet(this.viewers);
+        }
+
+        public int getViewerCount() {
+            return this.viewers.size();
+        }
+
+        /**
+         * Gets whether the vault was deleted while open, in which case it must not be saved when closed.
+         *
+         * @return true if deleted
+         */
+        public boolean isDeleted() {
+            return this.deleted;
+        }
+    }
+
+    private final Map<VaultViewInfo, Session> sessions = new ConcurrentHashMap<>();
+    // Viewer - the session they are viewing
+    private final Map<UUID, Session> viewers = new ConcurrentHashMap<>();
+    // Player - the vault being loaded for them
+    private final Map<UUID, VaultViewInfo> loading = new ConcurrentHashMap<>();
+
+    /**
+     * Marks a vault as loading for a player, who cannot open another one until it is done.
+     *
+     * @param player the player
+     * @param vault  the vault
+     * @return false if a vault is already loading for the player
+     */
+    public boolean startLoading(UUID player, VaultViewInfo vault) {
+        if (this.loading.putIfAbsent(player, vault) != null) {
+            return false;
+        }
+        this.sessions.computeIfAbsent(vault, Session::new);
+        return true;
+    }
+
+    /**
+     * Marks the vault loading for a player as done, dropping its session if it was not opened.
+     *
+     * @param player the player
+     */
+    public void finishLoading(UUID player) {
+        VaultViewInfo vault = this.loading.remove(player);
+        if (vault != null) {
+            this.sessions.computeIfPresent(vault, (key, session) -> session.state == State.LOADING && !this.loading.containsValue(key) ? null : session);
+        }
+    }
+
+    public boolean isLoading(UUID player) {
+        return this.loading.containsKey(player);
+    }
+
+    /**
+     * Gets the inventory of an open vault.
+     *
+     * @param vault the vault
+     * @return the inventory, or null if the vault is not open
+     */
+    public Inventory getInventory(VaultViewInfo vault) {
+        Session session = this.sessions.get(vault);
+        return session == null ? null : session.inventory;
+    }
+
+    /**
+     * Records that a player is now viewing a vault.
+     *
+     * @param viewer    the player
+     * @param vault     the vault
+     * @param inventory the inventory shown, which becomes the vault's inventory if it was not open yet
+     */
+    public void open(UUID viewer, VaultViewInfo vault, Inventory inventory) {
+        Session session = this.sessions.compute(vault, (key, existing) -> {
+            Session current = existing == null || existing.state == State.SAVING ? new Session(key) : existing;
+            if (current.inventory == null) {
+                current.inventory = inventory;
+            }
+            current.state = State.OPEN;
+            current.viewers.add(viewer);
+            return current;
+        });
+        Session previous = this.viewers.put(viewer, session);
+        if (previous != null && previous != session) {
+            previous.viewers.remove(viewer);
+        }
+    }
+
+    /**
+     * Gets the vault a player is viewing.
+     *
+     * @param viewer the player
+     * @return the vault, or null if the player is not viewing one
+     */
+    public VaultViewInfo getViewing(UUID viewer) {
+        Session session = this.viewers.get(viewer);
+        return session == null ? null : session.vault;
+    }
+
+    public boolean isViewing(UUID viewer) {
+        return this.viewers.containsKey(viewer);
+    }
+
+    /**
+     * Records that a player stopped viewing their vault. If nobody else is viewing it, the session moves to
+     * {@link State#SAVING} and the caller is expected to save it, then call {@link #end(Session)}.
+     *
+     * @param viewer the player
+     * @return the session the player was viewing, or null if none
+     */
+    public Session close(UUID viewer) {
+        Session session = this.viewers.remove(viewer);
+        if (session != null) {
+            session.viewers.remove(viewer);
+            if (session.viewers.isEmpty()) {
+                session.state = State.SAVING;
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Drops a session once it has been saved, unless the vault was opened again in the meantime.
+     *
+     * @param session the session
+     */
+    public void end(Session session) {
+        this.sessions.remove(session.vault, session);
+    }
+
+    /**
+     * Forgets a deleted vault, so the next open loads it again. Anyone still viewing it has it closed, without it
+     * being saved back. Must be run on the main thread.
+     *
+     * @param vault the vault
+     */
+    public void invalidate(VaultViewInfo vault) {
+        Session session = this.sessions.remove(vault);
+        if (session == null) {
+            return;
+        }
+        session.deleted = true;
+        for (UUID viewer : session.viewers) {
+            Player player = Bukkit.getPlayer(viewer);
+            if (player != null) {
+                player.closeInventory();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of open or loading vaults.
+     *
+     * @return the number of sessions
+     */
+    public int size() {
+        return this.sessions.size();
+    }
+
+    /**
+     * Reclaims viewers that are offline or no longer looking at their vault, saving vaults left without viewers,
+     * and drops sessions nobody is viewing or loading. Must be run on the main thread.
+     *
+     * @param manager the vault manager to save with
+     */
+    public void sweep(VaultManager manager) {
+        this.viewers.forEach((uuid, session) -> {
+            Player player = Bukkit.getPlayer(uuid);
+            if (player != null && session.inventory != null && session.inventory.equals(player.getOpenInventory().getTopInventory())) {
+                return;
+            }
+            PlayerVaults.debug("Reclaiming vault " + session.vault + " from vanished viewer " + uuid);
+            if (this.close(uuid) == session && session.state == State.SAVING && !session.deleted) {
+                manager.saveVaultIfChanged(session.inventory, session.vault.getVaultName(), session.vault.getNumber());
+                this.end(session);
+            }
+        });
+        this.loading.keySet().removeIf(uuid -> Bukkit.getPlayer(uuid) == null);
+        this.sessions.values().removeIf(session -> session.viewers.isEmpty() && !this.loading.containsValue(session.vault));
+    }
+}
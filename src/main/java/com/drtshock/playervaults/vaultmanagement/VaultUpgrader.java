@@ -0,0 +1,148 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.vaultmanagement;
+
+import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.vaultmanagement.storage.VaultContents;
+import com.drtshock.playervaults.vaultmanagement.storage.VaultStorage;
+import org.bukkit.Bukkit;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Walks every stored vault in the background and saves again those written by an older server version, so their
+ * items stop going through the server's data upgrades every time they are loaded.
+ * <p>
+ * Vaults are read and rewritten on the save thread and skipped while a save of them is pending, so an upgrade never
+ * overwrites newer contents. At most the configured number of vaults is checked per second.
+ */
+public class VaultUpgrader {
+    private static final long PERIOD_TICKS = 20;
+
+    private final PlayerVaults plugin;
+    private final VaultStorage storage;
+    private final VaultSaveQueue saveQueue;
+    private final int rate;
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger checked = new AtomicInteger();
+    private final AtomicInteger upgraded = new AtomicInteger();
+    private final Deque<Integer> numbers = new ArrayDeque<>();
+    private Iterator<String> holders;
+    private String holder;
+    private BukkitTask task;
+    private long start;
+    private volatile boolean stopped;
+
+    /**
+     * Creates a new upgrader.
+     *
+     * @param plugin    the plugin
+     * @param storage   the storage to upgrade
+     * @param saveQueue the queue saves of the storage go through
+     * @param rate      vaults to check per second
+     */
+    public VaultUpgrader(PlayerVaults plugin, VaultStorage storage, VaultSaveQueue saveQueue, int rate) {
+        this.plugin = plugin;
+        this.storage = storage;
+        this.saveQueue = saveQueue;
+        this.rate = rate;
+    }
+
+    public void start() {
+        this.start = System.currentTimeMillis();
+        this.task = this.plugin.getServer().getScheduler().runTaskTimerAsynchronously(this.plugin, this::tick, PERIOD_TICKS, PERIOD_TICKS);
+    }
+
+    public void stop() {
+        this.stopped = true;
+        if (this.task != null) {
+            this.task.cancel();
+        }
+    }
+
+    private synchronized void tick() {
+        if (this.stopped || this.running.get() > 0) {
+            return; // Still busy with the last batch
+        }
+        if (this.holders == null) {
+            this.holders = this.storage.getHolders().iterator();
+        }
+        for (int i = 0; i < this.rate; i++) {
+            if (!this.next()) {
+                this.plugin.getLogger().info("Checked " + this.checked.get() + " vaults for outdated items, upgraded " + this.upgraded.get() + " in " + (System.currentTimeMillis() - this.start) / 1000 + "s.");
+                this.stop();
+                return;
+            }
+            String holder = this.holder;
+            int number = this.numbers.poll();
+            this.running.incrementAndGet();
+            this.saveQueue.execute(() -> {
+                try {
+                    this.upgrade(holder, number);
+                } finally {
+                    this.running.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    private boolean next() {
+        while (this.numbers.isEmpty()) {
+            if (!this.holders.hasNext()) {
+                return false;
+            }
+            this.holder = this.holders.next();
+            this.numbers.addAll(new TreeSet<>(this.storage.getVaultNumbers(this.holder)));
+        }
+        return true;
+    }
+
+    // Runs on the save thread
+    private void upgrade(String holder, int number) {
+        if (this.stopped || this.saveQueue.getPending(holder, number) != null) {
+            return; // Written with current data soon anyway
+        }
+        try {
+            VaultContents contents = this.storage.loadContents(holder, number, -1);
+            this.checked.incrementAndGet();
+            if (contents == null || contents.items() == null || !contents.items().isOutdated()) {
+                return;
+            }
+            ItemStack[] items = contents.contents();
+            if (items == null) {
+                return; // Unreadable, better left as it is
+            }
+            Inventory inventory = Bukkit.createInventory(null, Math.max(contents.size(), (items.length + 8) / 9 * 9));
+            inventory.setContents(items);
+            this.storage.saveVault(holder, number, inventory);
+            this.upgraded.incrementAndGet();
+            PlayerVaults.debug("Upgraded vault " + number + " for " + holder + " from data version " + contents.items().getDataVersion());
+        } catch (Exception e) {
+            PlayerVaults.getInstance().getLogger().log(Level.WARNING, "Failed to upgrade vault " + number + " for " + holder, e);
+        }
+    }
+}
@@ -20,21 +20,12 @@ package com.drtshock.playervaults.vaultmanagement;
 
 /**
  * A class that stores information about a vault viewing including the holder of the vault, and the vault number.
+ * Equal for the same vault, so it can be used as a key.
+ *
+ * @param vaultName the holder of the vault
+ * @param number    the vault number
  */
-public class VaultViewInfo {
-
-    final String vaultName;
-    final int number;
-
-    /**
-     * Makes a VaultViewInfo object. Used for opening a vault owned by the opener.
-     *
-     * @param i vault number.
-     */
-    public VaultViewInfo(String vaultName, int i) {
-        this.number = i;
-        this.vaultName = vaultName;
-    }
+public record VaultViewInfo(String vaultName, int number) {
 
     /**
      * Get the holder of the vault.
@@ -58,4 +49,4 @@ public class VaultViewInfo {
     public String toString() {
         return this.vaultName + " " + this.number;
     }
-}
\ No newline at end of file
+}
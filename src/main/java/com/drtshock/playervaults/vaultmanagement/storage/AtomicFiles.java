@@ -0,0 +1,89 @@
+package com.drtshock.playervaults.vaultmanagement.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * File helpers that never leave a half written or missing file behind.
+ */
+final class AtomicFiles {
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private AtomicFiles() {
+    }
+
+    /**
+     * Replaces the contents of a file. The data is written to a temporary file in the same directory, forced to disk,
+     * and then moved over the target, so the target holds either the old or the new data at any moment.
+     *
+     * @param target the file to write
+     * @param data   the new contents
+     * @throws IOException if writing fails, the target is left untouched
+     */
+    static void write(Path target, byte[] data) throws IOException {
+        write(target, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Replaces the contents of a file with the remaining bytes of one or more buffers, in order.
+     *
+     * @param target the file to write
+     * @param data   the new contents
+     * @throws IOException if writing fails, the target is left untouched
+     * @see #write(Path, byte[])
+     */
+    static void write(Path target, ByteBuffer... data) throws IOException {
+        Path directory = target.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = directory.resolve(target.getFileName() + TEMP_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (ByteBuffer buffer : data) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            syncDirectory(directory);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Keeps the current contents of a file as a backup. Uses a hard link where possible, as the file itself is only
+     * ever replaced and not modified in place, and falls back to copying.
+     *
+     * @param file   the file to back up
+     * @param backup where to keep the backup, replaced if present
+     * @throws IOException if neither linking nor copying works
+     */
+    static void backup(Path file, Path backup) throws IOException {
+        Files.deleteIfExists(backup);
+        try {
+            Files.createLink(backup, file);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(file, backup, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static void syncDirectory(Path directory) {
+        // Makes the rename itself durable. Not possible on every platform, in which case the move is all we get.
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+}
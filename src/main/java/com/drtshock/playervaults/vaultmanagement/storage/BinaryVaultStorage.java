@@ -0,0 +1,347 @@
+package com.drtshock.playervaults.vaultmanagement.storage;
+
+import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.vaultmanagement.CardboardBoxSerialization;
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.inventory.Inventory;
+import org.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Stores every vault in its own small binary file, {@code newvaults/<holder>/<number>.pv}, so reading or writing one
+ * vault never touches the others.
+ * <p>
+ * File layout, big-endian: magic ({@code int}), format version ({@code short}), inventory size ({@code int}),
+ * server data version ({@code int}), payload length ({@code int}), then the payload as written by
+ * {@link CardboardBoxSerialization#toBuffer(Inventory, String)}.
+ * <p>
+ * Holders still stored as {@code newvaults/<holder>.yml} are converted in the background once the storage starts, or
+ * right away if they are accessed first. Each holder is converted into a temporary directory that is only renamed into
+ * place once every vault is written, and the old file is moved to the backups folder.
+ */
+public class BinaryVaultStorage implements VaultStorage {
+    private static final int MAGIC = 0x50564C54; // PVLT
+    private static final short FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 2 + 4 + 4 + 4;
+    private static final String EXTENSION = ".pv";
+    private static final String INVALID_EXTENSION = ".pv.invalid";
+    private static final String CONVERTING_SUFFIX = ".converting";
+    private static final String LEGACY_VAULTKEY = "vault";
+
+    private final File directory = PlayerVaults.getInstance().getVaultData();
+    private final ExecutorService converter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "PlayerVaults Binary Conversion");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean closing;
+
+    public BinaryVaultStorage() {
+        this.converter.execute(this::convertLegacyFiles);
+    }
+
+    @Override
+    public void saveVault(String holder, int number, Inventory inventory) {
+        Path file = getHolderDirectory(holder).resolve(number + EXTENSION);
+        if (PlayerVaults.getInstance().isBackupsEnabled() && Files.exists(file)) {
+            try {
+                Path backup = PlayerVaults.getInstance().getBackupsFolder().toPath().resolve(holder);
+                Files.createDirectories(backup);
+                AtomicFiles.backup(file, backup.resolve(number + EXTENSION));
+            } catch (IOException e) {
+                PlayerVaults.getInstance().addException(new IllegalStateException("Failed to back up vault " + number + " for: " + holder, e));
+                PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to back up vault " + number + " for: " + holder, e);
+            }
+        }
+        try {
+            // Written straight from the serialization buffer, without copying the payload
+            ByteBuffer payload = CardboardBoxSerialization.toBuffer(inventory, holder);
+            AtomicFiles.write(file, header(inventory.getSize(), getDataVersion(), payload.remaining()), payload);
+        } catch (IOException e) {
+            // Reported by the save queue, which keeps the vault pending and tries again
+            throw new UncheckedIOException("Failed to save vault " + number + " for: " + holder, e);
+        }
+        PlayerVaults.debug("Saved vault " + number + " for " + holder);
+    }
+
+    @Override
+    public VaultContents loadContents(String holder, int number, int size) {
+        Path file = getHolderDirectory(holder).resolve(number + EXTENSION);
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+            checkHeader(buffer, file);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to load vault " + number + " for: " + holder, e));
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to load vault " + number + " for: " + holder, e);
+            return null;
+        }
+        int storedSize = buffer.getInt();
+        buffer.getInt(); // Data version, not needed for reading
+        byte[] payload = new byte[buffer.getInt()];
+        buffer.get(payload);
+        if (size <= 0 || size % 9 != 0) {
+            size = storedSize > 0 && storedSize % 9 == 0 ? storedSize : PlayerVaults.getInstance().getDefaultVaultSize();
+        }
+        LazyVaultContents contents = CardboardBoxSerialization.fromBytesLazy(payload, holder);
+        return new VaultContents(size, contents);
+    }
+
+    @Override
+    public boolean vaultExists(String holder, int number) {
+        return Files.exists(getHolderDirectory(holder).resolve(number + EXTENSION));
+    }
+
+    @Override
+    public Set<Integer> getVaultNumbers(String holder) {
+        Set<Integer> vaults = new HashSet<>();
+        Path holderDirectory = getHolderDirectory(holder);
+        if (!Files.isDirectory(holderDirectory)) {
+            return vaults;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(holderDirectory, "*" + EXTENSION)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    vaults.add(Integer.parseInt(name.substring(0, name.length() - EXTENSION.length())));
+                } catch (NumberFormatException e) {
+                    // Ignore invalid files
+                }
+            }
+        } catch (IOException e) {
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to list vaults for: " + holder, e);
+        }
+        return vaults;
+    }
+
+    @Override
+    public Set<String> getHolders() {
+        Set<String> holders = new HashSet<>();
+        Path backups = PlayerVaults.getInstance().getBackupsFolder().toPath();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory.toPath())) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (path.equals(backups) || name.endsWith(CONVERTING_SUFFIX)) {
+                    continue;
+                }
+                if (Files.isDirectory(path)) {
+                    holders.add(name);
+                } else if (name.endsWith(".yml")) {
+                    holders.add(name.substring(0, name.length() - ".yml".length())); // Not converted yet
+                }
+            }
+        } catch (IOException e) {
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to list vault holders", e);
+        }
+        return holders;
+    }
+
+    @Override
+    public void deleteVault(String holder, int number) {
+        try {
+            Files.deleteIfExists(getHolderDirectory(holder).resolve(number + EXTENSION));
+        } catch (IOException e) {
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to delete vault " + number + " for: " + holder, e));
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to delete vault " + number + " for: " + holder, e);
+        }
+    }
+
+    @Override
+    public void deleteAllVaults(String holder) {
+        Path holderDirectory = getHolderDirectory(holder);
+        if (!Files.isDirectory(holderDirectory)) {
+            return;
+        }
+        try {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(holderDirectory)) {
+                for (Path path : stream) {
+                    Files.delete(path);
+                }
+            }
+            Files.delete(holderDirectory);
+            PlayerVaults.debug("Deleted vault files for " + holder);
+        } catch (IOException e) {
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to delete vault files for: " + holder, e));
+            PlayerVaults.getInstance().getLogger().severe("Failed to delete vault files for: " + holder);
+        }
+    }
+
+    @Override
+    public void cachePlayerVault(String holder) {
+        // Nothing to cache, single vaults are cheap to read. Still convert old data early.
+        getHolderDirectory(holder);
+    }
+
+    @Override
+    public void removePlayerCachedVault(String holder) {
+    }
+
+    @Override
+    public void close() {
+        this.closing = true;
+        this.converter.shutdown();
+        try {
+            this.converter.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Path getHolderDirectory(String holder) {
+        Path holderDirectory = this.directory.toPath().resolve(holder);
+        if (!Files.isDirectory(holderDirectory)) {
+            convertLegacyFile(holder, holderDirectory);
+        }
+        return holderDirectory;
+    }
+
+    /**
+     * Converts every holder still stored in the old format, so they are not converted on first access, which may be
+     * on the main thread.
+     */
+    private void convertLegacyFiles() {
+        int converted = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory.toPath(), "*.yml")) {
+            for (Path path : stream) {
+                if (this.closing) {
+                    return;
+                }
+                String name = path.getFileName().toString();
+                String holder = name.substring(0, name.length() - ".yml".length());
+                if (this.convertLegacyFile(holder, this.directory.toPath().resolve(holder))) {
+                    converted++;
+                }
+            }
+        } catch (IOException e) {
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to list vault files to convert", e);
+        }
+        if (converted > 0) {
+            PlayerVaults.getInstance().getLogger().info("Converted " + converted + " vault files to binary vaults.");
+        }
+    }
+
+    private synchronized boolean convertLegacyFile(String holder, Path holderDirectory) {
+        Path legacy = this.directory.toPath().resolve(holder + ".yml");
+        if (Files.isDirectory(holderDirectory) || !Files.exists(legacy)) {
+            return false;
+        }
+        YamlConfiguration yaml = YamlConfiguration.loadConfiguration(legacy.toFile());
+        // Left over if an earlier conversion was interrupted, the old file is still there
+        Path temp = holderDirectory.resolveSibling(holder + CONVERTING_SUFFIX);
+        try {
+            deleteDirectory(temp);
+            Files.createDirectories(temp);
+            for (String key : yaml.getKeys(false)) {
+                if (!key.startsWith(LEGACY_VAULTKEY)) {
+                    continue;
+                }
+                int number;
+                try {
+                    number = Integer.parseInt(key.substring(LEGACY_VAULTKEY.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                String data = yaml.getString(key);
+                if (data == null || data.isEmpty()) {
+                    continue;
+                }
+                byte[] payload;
+                try {
+                    payload = Base64Coder.decodeLines(data);
+                } catch (IllegalArgumentException e) {
+                    // Kept next to the converted vaults, so it can still be recovered by hand
+                    PlayerVaults.getInstance().addException(new IllegalStateException("Failed to convert vault " + number + " for: " + holder, e));
+                    PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to convert vault " + number + " for: " + holder + ", keeping it as " + number + INVALID_EXTENSION, e);
+                    AtomicFiles.write(temp.resolve(number + INVALID_EXTENSION), data.getBytes(StandardCharsets.UTF_8));
+                    continue;
+                }
+                // The old Base64 text holds the same payload, which may be compressed or sparse, so the slot count
+                // has to be decoded from it. Unreadable payloads are kept as they are, opening at the default size.
+                int size;
+                try {
+                    size = (CardboardBoxSerialization.countSlots(ByteBuffer.wrap(payload)) + 8) / 9 * 9;
+                } catch (IOException | RuntimeException e) {
+                    size = 0;
+                }
+                AtomicFiles.write(temp.resolve(number + EXTENSION), encode(size, 0, payload));
+            }
+            // Only now the holder counts as converted, an interrupted conversion starts over from the old file
+            Files.move(temp, holderDirectory, StandardCopyOption.ATOMIC_MOVE);
+            AtomicFiles.syncDirectory(this.directory.toPath());
+            Files.move(legacy, PlayerVaults.getInstance().getBackupsFolder().toPath().resolve(holder + ".yml"), StandardCopyOption.REPLACE_EXISTING);
+            PlayerVaults.debug("Converted vault file for " + holder + " to binary vaults.");
+            return true;
+        } catch (IOException e) {
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to convert vault file for: " + holder, e));
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to convert vault file for: " + holder, e);
+            try {
+                deleteDirectory(temp);
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static ByteBuffer encode(int size, int dataVersion, byte[] payload) {
+        return ByteBuffer.allocate(HEADER_SIZE + payload.length).put(header(size, dataVersion, payload.length)).put(payload).flip();
+    }
+
+    private static ByteBuffer header(int size, int dataVersion, int payloadLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putShort(FORMAT_VERSION);
+        buffer.putInt(size);
+        buffer.putInt(dataVersion);
+        buffer.putInt(payloadLength);
+        return buffer.flip();
+    }
+
+    private static void checkHeader(ByteBuffer buffer, Path file) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a vault file: " + file);
+        }
+        short version = buffer.getShort();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown vault file version " + version + ": " + file);
+        }
+        if (buffer.getInt(buffer.position() + 8) > buffer.remaining() - 12) {
+            throw new IOException("Truncated vault file: " + file);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static int getDataVersion() {
+        return Bukkit.getUnsafe().getDataVersion();
+    }
+}
@@ -0,0 +1,209 @@
+package com.drtshock.playervaults.vaultmanagement.storage;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small bounded pool of JDBC connections.
+ * <p>
+ * Connections handed out are proxies, closing them returns the underlying connection to the pool. Connections that sat
+ * idle for a moment are checked with {@link Connection#isValid(int)} before being handed out again, and connections
+ * idle for longer than the idle timeout are closed in the background.
+ */
+final class ConnectionPool {
+    // Connections used more recently than this are handed out without checking them first
+    private static final long VALIDATION_INTERVAL = 500;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+    private static final long EVICTION_INTERVAL = 30;
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final long connectionTimeout;
+    private final long idleTimeout;
+    private final Semaphore permits;
+    private final Deque<Idle> idle = new ArrayDeque<>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    /**
+     * Creates a new pool. No connection is opened until one is requested.
+     *
+     * @param url               JDBC url
+     * @param username          database user
+     * @param password          database password
+     * @param maxSize           most connections open at once
+     * @param connectionTimeout milliseconds to wait for a free connection
+     * @param idleTimeout       milliseconds after which an unused connection is closed
+     */
+    ConnectionPool(String url, String username, String password, int maxSize, long connectionTimeout, long idleTimeout) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.connectionTimeout = connectionTimeout;
+        this.idleTimeout = idleTimeout;
+        this.permits = new Semaphore(Math.max(1, maxSize), true);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PlayerVaults Connection Evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.evictor.scheduleWithFixedDelay(this::evictIdle, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Borrows a connection, waiting up to the connection timeout if all are in use. Close it to give it back.
+     *
+     * @return a connection
+     * @throws SQLException if none became available in time or a new one could not be opened
+     */
+    Connection getConnection() throws SQLException {
+        if (this.closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        try {
+            if (!this.permits.tryAcquire(this.connectionTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLTimeoutException("Timed out waiting " + this.connectionTimeout + "ms for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection", e);
+        }
+        try {
+            return this.wrap(this.take());
+        } catch (SQLException | RuntimeException e) {
+            this.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes all idle connections. Connections still borrowed are closed as they are returned.
+     */
+    void close() {
+        this.closed = true;
+        this.evictor.shutdown();
+        List<Idle> connections;
+        synchronized (this.idle) {
+            connections = new ArrayList<>(this.idle);
+            this.idle.clear();
+        }
+        for (Idle connection : connections) {
+            closeQuietly(connection.connection());
+        }
+    }
+
+    private Connection take() throws SQLException {
+        while (true) {
+            Idle candidate;
+            synchronized (this.idle) {
+                candidate = this.idle.pollFirst();
+            }
+            if (candidate == null) {
+                return DriverManager.getConnection(this.url, this.username, this.password);
+            }
+            if (System.currentTimeMillis() - candidate.since() < VALIDATION_INTERVAL || candidate.connection().isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                return candidate.connection();
+            }
+            closeQuietly(candidate.connection());
+        }
+    }
+
+    private void giveBack(Connection connection) {
+        try {
+            if (this.closed || connection.isClosed()) {
+                closeQuietly(connection);
+                return;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            synchronized (this.idle) {
+                // Most recently used first, so the rarely needed extra connections go idle and get evicted
+                this.idle.addFirst(new Idle(connection, System.currentTimeMillis()));
+            }
+        } catch (SQLException e) {
+            closeQuietly(connection);
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - this.idleTimeout;
+        List<Connection> evicted = new ArrayList<>();
+        synchronized (this.idle) {
+            Iterator<Idle> iterator = this.idle.iterator();
+            while (iterator.hasNext()) {
+                Idle candidate = iterator.next();
+                if (candidate.since() < cutoff) {
+                    iterator.remove();
+                    evicted.add(candidate.connection());
+                }
+            }
+        }
+        evicted.forEach(ConnectionPool::closeQuietly);
+    }
+
+    private Connection wrap(Connection connection) {
+        boolean[] returned = new boolean[1];
+        return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "close" -> {
+                    synchronized (returned) {
+                        if (!returned[0]) {
+                            returned[0] = true;
+                            this.giveBack(connection);
+                        }
+                    }
+                    return null;
+                }
+                case "isClosed" -> {
+                    synchronized (returned) {
+                        return returned[0] || connection.isClosed();
+                    }
+                }
+                case "equals" -> {
+                    return proxy == args[0];
+                }
+                case "hashCode" -> {
+                    return System.identityHashCode(proxy);
+                }
+            }
+            synchronized (returned) {
+                if (returned[0]) {
+                    throw new SQLException("Connection has been returned to the pool");
+                }
+            }
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    private record Idle(Connection connection, long since) {
+    }
+}
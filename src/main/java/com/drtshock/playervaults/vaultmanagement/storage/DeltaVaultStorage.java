@@ -0,0 +1,21 @@
+package com.drtshock.playervaults.vaultmanagement.storage;
+
+import org.bukkit.inventory.Inventory;
+
+import java.util.BitSet;
+
+/**
+ * A storage that can write only the slots of a vault that changed, instead of the whole vault.
+ */
+public interface DeltaVaultStorage extends VaultStorage {
+    /**
+     * Saves the given slots of a vault. Falls back to saving the whole vault when there is no earlier copy to
+     * update, or it has another size.
+     *
+     * @param holder    The vault holder.
+     * @param number    The vault number.
+     * @param inventory The full vault contents.
+     * @param slots     The slots changed since the vault was last saved.
+     */
+    void saveSlots(String holder, int number, Inventory inventory, BitSet slots);
+}
@@ -0,0 +1,127 @@
+package com.drtshock.playervaults.vaultmanagement.storage;
+
+import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.vaultmanagement.CardboardBoxSerialization;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.logging.Level;
+
+/**
+ * The items of a stored vault, each kept as its serialized bytes until it is first asked for.
+ * <p>
+ * Checking which slots are empty never deserializes anything, and looking at one slot only deserializes that one, so
+ * callers that only need part of a vault do not pay for all of it. Items handed out are shared with later calls and
+ * must not be modified, clone them first.
+ */
+public final class LazyVaultContents {
+    private final String target;
+    private final int dataVersion;
+    // Serialized items not deserialized yet, null for empty or already deserialized slots
+    private final byte[][] raw;
+    private final ItemStack[] items;
+
+    private LazyVaultContents(String target, int dataVersion, byte[][] raw, ItemStack[] items) {
+        this.target = target;
+        this.dataVersion = dataVersion;
+        this.raw = raw;
+        this.items = items;
+    }
+
+    /**
+     * Wraps items that are already deserialized, and so up to date.
+     *
+     * @param items the items, not copied
+     * @return the contents
+     */
+    public static LazyVaultContents of(ItemStack[] items) {
+        return new LazyVaultContents(null, CardboardBoxSerialization.getDataVersion(), new byte[items.length][], items);
+    }
+
+    /**
+     * Wraps serialized items.
+     *
+     * @param raw         the serialized item of each slot, null for empty slots, not copied
+     * @param dataVersion the data version the items were written with
+     * @param target      the holder, for error messages
+     * @return the contents
+     */
+    public static LazyVaultContents of(byte[][] raw, int dataVersion, String target) {
+        return new LazyVaultContents(target, dataVersion, raw, new ItemStack[raw.length]);
+    }
+
+    /**
+     * Gets the data version the items were written with, 0 if it was not recorded.
+     *
+     * @return the data version
+     */
+    public int getDataVersion() {
+        return this.dataVersion;
+    }
+
+    /**
+     * Gets whether the items were written by an older server version, so reading them runs them through the server's
+     * data upgrades. Saving the vault again writes them in the current version.
+     *
+     * @return true if the items are outdated
+     */
+    public boolean isOutdated() {
+        return this.dataVersion < CardboardBoxSerialization.getDataVersion();
+    }
+
+    /**
+     * Gets the number of stored slots, which may differ from the size the vault is opened with.
+     *
+     * @return the slot count
+     */
+    public int getSlotCount() {
+        return this.items.length;
+    }
+
+    /**
+     * Gets whether a slot is empty, without deserializing it.
+     *
+     * @param slot the slot
+     * @return true if there is no item in the slot
+     */
+    public synchronized boolean isEmpty(int slot) {
+        return this.raw[slot] == null && this.items[slot] == null;
+    }
+
+    /**
+     * Gets the item in a slot, deserializing it on first access.
+     *
+     * @param slot the slot
+     * @return the item, or null if the slot is empty
+     * @throws IllegalStateException if the item could not be read
+     */
+    public synchronized ItemStack getItem(int slot) {
+        byte[] bytes = this.raw[slot];
+        if (bytes != null) {
+            try {
+                this.items[slot] = CardboardBoxSerialization.deserializeItem(bytes);
+            } catch (Exception e) {
+                throw PlayerVaults.getInstance().addException(new IllegalStateException("Failed to load item in slot " + slot + " for " + this.target, e));
+            }
+            this.raw[slot] = null;
+        }
+        return this.items[slot];
+    }
+
+    /**
+     * Deserializes every item, as needed to put them in an inventory.
+     *
+     * @return a new array of all items, or null if any could not be read
+     */
+    public synchronized ItemStack[] toArray() {
+        try {
+            ItemStack[] array = new ItemStack[this.items.length];
+            for (int slot = 0; slot < array.length; slot++) {
+                array[slot] = this.getItem(slot);
+            }
+            return array;
+        } catch (IllegalStateException e) {
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to load items for " + this.target, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,706 @@
+package com.drtshock.playervaults.vaultmanagement.storage;
+
+import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.vaultmanagement.CardboardBoxSerialization;
+import com.drtshock.playervaults.vaultmanagement.PayloadCodec;
+import org.bukkit.inventory.Inventory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Appends every save to a segment file instead of rewriting data in place, keeping an in-memory index of where the
+ * latest copy of each vault lives.
+ * <p>
+ * Segments are named {@code segment-<id>.pvl} and only the newest one is written to. Once it reaches the configured
+ * size it is sealed with a footer listing every record in it, which is all that has to be read at startup. A background
+ * task copies the still used records out of mostly stale segments and deletes them.
+ * <p>
+ * Appends are not synced one by one. The save queue calls {@link #flush()} once it has written a batch of saves, and
+ * compaction syncs its copies before deleting the segment they came from.
+ * <p>
+ * Sealed segments never change, so they can be memory-mapped. Reads then decode straight from the mapped region
+ * without copying the record first.
+ * <p>
+ * Record layout, big-endian: magic ({@code int}), type ({@code byte}), holder length ({@code short}), holder (UTF-8),
+ * vault number ({@code int}), inventory size ({@code int}), payload length ({@code int}), payload, CRC32 of everything
+ * before it ({@code int}). Deleting a vault appends a record without payload.
+ * <p>
+ * When only a few slots of a vault changed, a patch record holding just those slots is appended instead of the whole
+ * vault. Reads apply the patches to the last full copy. After a few patches, or when compacted, the vault is written
+ * out in full again.
+ */
+public class LogVaultStorage implements DeltaVaultStorage {
+    private static final int RECORD_MAGIC = 0x50564C52; // PVLR
+    private static final int FOOTER_MAGIC = 0x50564C46; // PVLF
+    private static final byte TYPE_SAVE = 0;
+    private static final byte TYPE_DELETE = 1;
+    private static final byte TYPE_PATCH = 2;
+    private static final int MAX_PATCHES = 8;
+    private static final int FOOTER_TRAILER_SIZE = 4 + 8 + 4 + 4;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".pvl";
+    // Left next to a segment that could not be deleted yet, because it is still mapped on some platforms
+    private static final String DELETED_SUFFIX = ".deleted";
+
+    private final Path directory;
+    private final long maxSegmentSize;
+    private final double compactionThreshold;
+    private final boolean memoryMapped;
+    private final Map<String, Map<Integer, Chain>> index = new ConcurrentHashMap<>();
+    private final NavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    // Held for reading while a segment is read from, and for writing while one is removed
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    // Guards appending to the active segment and changes to the index
+    private final Object writeLock = new Object();
+    private final List<Entry> activeEntries = new ArrayList<>();
+    private final ScheduledExecutorService compactor;
+    private volatile Segment active;
+    private volatile boolean closing;
+    // Set once the channels are closed, guarded by segmentLock
+    private boolean closed;
+
+    public LogVaultStorage(Path directory, long maxSegmentSize, double compactionThreshold, long compactionInterval, boolean memoryMapped) {
+        this.directory = directory;
+        this.maxSegmentSize = Math.min(maxSegmentSize, Integer.MAX_VALUE);
+        this.compactionThreshold = compactionThreshold;
+        this.memoryMapped = memoryMapped;
+        try {
+            this.open();
+        } catch (IOException e) {
+            throw PlayerVaults.getInstance().addException(new IllegalStateException("Failed to open vault log in " + directory, e));
+        }
+        this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PlayerVaults Log Compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.compactor.scheduleWithFixedDelay(this::compact, compactionInterval, compactionInterval, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void saveVault(String holder, int number, Inventory inventory) {
+        ByteBuffer payload = CardboardBoxSerialization.toBuffer(inventory, holder);
+        ByteBuffer record = encodeRecord(TYPE_SAVE, holder, number, inventory.getSize(), payload);
+        synchronized (this.writeLock) {
+            try {
+                Location location = this.append(TYPE_SAVE, holder, number, record);
+                this.put(holder, number, location, inventory.getSize());
+            } catch (IOException e) {
+                // Reported by the save queue, which keeps the vault pending and tries again
+                throw new UncheckedIOException("Failed to save vault " + number + " for: " + holder, e);
+            }
+        }
+        PlayerVaults.debug("Saved vault " + number + " for " + holder);
+    }
+
+    @Override
+    public void saveSlots(String holder, int number, Inventory inventory, BitSet slots) {
+        Chain chain = this.lookup(holder, number);
+        // A patch only pays off while it is much smaller than the vault and reads do not have to apply many
+        if (chain == null || chain.size() != inventory.getSize() || chain.patches().size() >= MAX_PATCHES || slots.cardinality() * 2 > inventory.getSize()) {
+            this.saveVault(holder, number, inventory);
+            return;
+        }
+        ByteBuffer payload = CardboardBoxSerialization.toPatch(inventory, slots, holder);
+        ByteBuffer record = encodeRecord(TYPE_PATCH, holder, number, inventory.getSize(), payload);
+        synchronized (this.writeLock) {
+            try {
+                if (this.lookup(holder, number) != null) {
+                    Location location = this.append(TYPE_PATCH, holder, number, record);
+                    this.addPatch(holder, number, location);
+                    PlayerVaults.debug("Saved " + slots.cardinality() + " slots of vault " + number + " for " + holder);
+                    return;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to save vault " + number + " for: " + holder, e);
+            }
+        }
+        this.saveVault(holder, number, inventory); // Deleted meanwhile
+    }
+
+    @Override
+    public VaultContents loadContents(String holder, int number, int size) {
+        Record record = this.read(holder, number);
+        if (record == null) {
+            return null;
+        }
+        if (size <= 0 || size % 9 != 0) {
+            size = record.size() > 0 && record.size() % 9 == 0 ? record.size() : PlayerVaults.getInstance().getDefaultVaultSize();
+        }
+        LazyVaultContents contents = CardboardBoxSerialization.fromBufferLazy(record.payload(), holder);
+        return new VaultContents(size, contents);
+    }
+
+    @Override
+    public boolean vaultExists(String holder, int number) {
+        return this.lookup(holder, number) != null;
+    }
+
+    @Override
+    public Set<Integer> getVaultNumbers(String holder) {
+        Map<Integer, Chain> vaults = this.index.get(holder);
+        return vaults == null ? new HashSet<>() : new HashSet<>(vaults.keySet());
+    }
+
+    @Override
+    public Set<String> getHolders() {
+        return new HashSet<>(this.index.keySet());
+    }
+
+    @Override
+    public void deleteVault(String holder, int number) {
+        synchronized (this.writeLock) {
+            try {
+                this.delete(holder, number);
+            } catch (IOException e) {
+                PlayerVaults.getInstance().addException(new IllegalStateException("Failed to delete vault " + number + " for: " + holder, e));
+                PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to delete vault " + number + " for: " + holder, e);
+            }
+        }
+    }
+
+    @Override
+    public void deleteAllVaults(String holder) {
+        synchronized (this.writeLock) {
+            try {
+                for (int number : this.getVaultNumbers(holder)) {
+                    this.delete(holder, number);
+                }
+            } catch (IOException e) {
+                PlayerVaults.getInstance().addException(new IllegalStateException("Failed to delete vaults for: " + holder, e));
+                PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to delete vaults for: " + holder, e);
+            }
+        }
+    }
+
+    @Override
+    public void cachePlayerVault(String holder) {
+        // The index is always in memory
+    }
+
+    @Override
+    public void removePlayerCachedVault(String holder) {
+    }
+
+    @Override
+    public void flush() {
+        synchronized (this.writeLock) {
+            try {
+                this.sync();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to sync vault log", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // Not interrupting, that would close the channel the compactor is writing to
+        this.closing = true;
+        this.compactor.shutdown();
+        try {
+            this.compactor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this.writeLock) {
+            try {
+                this.seal(this.active);
+            } catch (IOException e) {
+                PlayerVaults.getInstance().getLogger().log(Level.WARNING, "Failed to seal vault log segment, it will be scanned on next start", e);
+            }
+            this.segmentLock.writeLock().lock();
+            try {
+                this.closed = true;
+                for (Segment segment : this.segments.values()) {
+                    try {
+                        segment.channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            } finally {
+                this.segmentLock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(this.directory);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                long id;
+                try {
+                    id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                Path deleted = path.resolveSibling(name + DELETED_SUFFIX);
+                if (Files.exists(deleted)) {
+                    Files.delete(path);
+                    Files.delete(deleted);
+                    continue;
+                }
+                this.segments.put(id, new Segment(id, path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)));
+            }
+        }
+        long start = System.currentTimeMillis();
+        for (Segment segment : this.segments.values()) {
+            List<Entry> entries = this.readFooter(segment);
+            if (entries == null) {
+                // Not sealed, the server stopped without closing the log
+                entries = this.scan(segment);
+            }
+            for (Entry entry : entries) {
+                this.apply(segment, entry);
+            }
+            segment.sealed = true;
+            if (segment.id == this.segments.lastKey()) {
+                // Keep appending to the newest segment, dropping its footer
+                segment.channel.truncate(segment.size);
+                segment.sealed = false;
+                this.activeEntries.addAll(entries);
+                this.active = segment;
+            } else {
+                if (segment.channel.size() == segment.size) {
+                    this.writeFooter(segment, entries);
+                }
+                this.map(segment);
+            }
+        }
+        if (this.active == null) {
+            this.active = this.createSegment(1);
+        }
+        PlayerVaults.debug("Opened vault log with " + this.segments.size() + " segments", start);
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        Path path = this.directory.resolve(SEGMENT_PREFIX + String.format("%010d", id) + SEGMENT_SUFFIX);
+        Segment segment = new Segment(id, path, FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        this.segments.put(id, segment);
+        return segment;
+    }
+
+    private void apply(Segment segment, Entry entry) {
+        Location location = new Location(segment, entry.offset(), entry.length());
+        switch (entry.type()) {
+            // The footer does not know the size, the first patch after a restart writes the vault in full instead
+            case TYPE_SAVE -> this.put(entry.holder(), entry.number(), location, -1);
+            case TYPE_PATCH -> this.addPatch(entry.holder(), entry.number(), location);
+            default -> this.remove(entry.holder(), entry.number());
+        }
+    }
+
+    private Chain lookup(String holder, int number) {
+        Map<Integer, Chain> vaults = this.index.get(holder);
+        return vaults == null ? null : vaults.get(number);
+    }
+
+    private void put(String holder, int number, Location location, int size) {
+        Chain old = this.index.computeIfAbsent(holder, h -> new ConcurrentHashMap<>()).put(number, new Chain(location, List.of(), size));
+        location.segment().liveBytes.addAndGet(location.length());
+        if (old != null) {
+            old.release();
+        }
+    }
+
+    // A patch without a full copy before it belongs to a vault that was deleted since, and is ignored
+    private void addPatch(String holder, int number, Location location) {
+        Map<Integer, Chain> vaults = this.index.get(holder);
+        if (vaults != null && vaults.computeIfPresent(number, (n, chain) -> chain.with(location)) != null) {
+            location.segment().liveBytes.addAndGet(location.length());
+        }
+    }
+
+    private void remove(String holder, int number) {
+        Map<Integer, Chain> vaults = this.index.get(holder);
+        if (vaults == null) {
+            return;
+        }
+        Chain old = vaults.remove(number);
+        if (old != null) {
+            old.release();
+        }
+        if (vaults.isEmpty()) {
+            this.index.remove(holder, vaults);
+        }
+    }
+
+    private void delete(String holder, int number) throws IOException {
+        if (!this.vaultExists(holder, number)) {
+            return;
+        }
+        this.append(TYPE_DELETE, holder, number, encodeRecord(TYPE_DELETE, holder, number, 0, ByteBuffer.allocate(0)));
+        this.remove(holder, number);
+    }
+
+    private Record read(String holder, int number) {
+        this.segmentLock.readLock().lock();
+        try {
+            if (this.closed) {
+                throw new IllegalStateException("Vault log is closed, cannot load vault " + number + " for: " + holder);
+            }
+            // Looked up under the lock, a compaction only closes a segment after the index stopped pointing at it
+            Chain chain = this.lookup(holder, number);
+            return chain == null ? null : this.read(chain);
+        } catch (IOException e) {
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to load vault " + number + " for: " + holder, e));
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to load vault " + number + " for: " + holder, e);
+            return null;
+        } finally {
+            this.segmentLock.readLock().unlock();
+        }
+    }
+
+    // Must hold segmentLock, or be the compactor
+    private Record read(Chain chain) throws IOException {
+        Record base = this.readRecord(chain.base());
+        if (chain.patches().isEmpty()) {
+            return base;
+        }
+        List<ByteBuffer> patches = new ArrayList<>(chain.patches().size());
+        for (Location patch : chain.patches()) {
+            patches.add(this.readRecord(patch).payload());
+        }
+        ByteBuffer merged = ByteBuffer.wrap(CardboardBoxSerialization.applyPatches(base.payload(), patches));
+        return new Record(TYPE_SAVE, base.holder(), base.number(), base.size(), merged);
+    }
+
+    private Record readRecord(Location location) throws IOException {
+        ByteBuffer mapped = location.segment().mapped;
+        ByteBuffer buffer = mapped != null ? mapped.slice((int) location.offset(), location.length()) : this.readBytes(location.segment(), location.offset(), location.length());
+        Record record = decodeRecord(buffer);
+        if (record == null) {
+            throw new IOException("Corrupt record at " + location.offset() + " in " + location.segment().path);
+        }
+        return record;
+    }
+
+    private ByteBuffer readBytes(Segment segment, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (segment.channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + segment.path);
+            }
+        }
+        return buffer.flip();
+    }
+
+    // Must hold writeLock
+    private Location append(byte type, String holder, int number, ByteBuffer record) throws IOException {
+        int length = record.remaining();
+        if (this.active.size > 0 && this.active.size + length > this.maxSegmentSize) {
+            this.seal(this.active);
+            this.active = this.createSegment(this.active.id + 1);
+        }
+        long offset = this.active.size;
+        while (record.hasRemaining()) {
+            this.active.channel.write(record, offset + record.position());
+        }
+        this.active.size += length;
+        this.activeEntries.add(new Entry(type, holder, number, offset, length));
+        return new Location(this.active, offset, length);
+    }
+
+    // Must hold writeLock. Earlier segments were synced when sealed.
+    private void sync() throws IOException {
+        if (this.active.channel.isOpen()) {
+            this.active.channel.force(false);
+        }
+    }
+
+    // Must hold writeLock
+    private void seal(Segment segment) throws IOException {
+        if (segment.sealed) {
+            return;
+        }
+        this.writeFooter(segment, this.activeEntries);
+        this.activeEntries.clear();
+        segment.sealed = true;
+        this.map(segment);
+    }
+
+    private void map(Segment segment) throws IOException {
+        if (this.memoryMapped && segment.size > 0) {
+            segment.mapped = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+        }
+    }
+
+    private void writeFooter(Segment segment, List<Entry> entries) throws IOException {
+        int length = 0;
+        List<byte[]> holders = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            byte[] holder = entry.holder().getBytes(StandardCharsets.UTF_8);
+            holders.add(holder);
+            length += 1 + 2 + holder.length + 4 + 8 + 4;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length + FOOTER_TRAILER_SIZE);
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            buffer.put(entry.type()).putShort((short) holders.get(i).length).put(holders.get(i));
+            buffer.putInt(entry.number()).putLong(entry.offset()).putInt(entry.length());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, length);
+        buffer.putInt(entries.size()).putLong(segment.size).putInt((int) crc.getValue()).putInt(FOOTER_MAGIC);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            segment.channel.write(buffer, segment.size + buffer.position());
+        }
+        segment.channel.force(true);
+    }
+
+    private List<Entry> readFooter(Segment segment) throws IOException {
+        long fileSize = segment.channel.size();
+        if (fileSize < FOOTER_TRAILER_SIZE) {
+            return null;
+        }
+        ByteBuffer trailer = this.readBytes(segment, fileSize - FOOTER_TRAILER_SIZE, FOOTER_TRAILER_SIZE);
+        int count = trailer.getInt();
+        long recordsEnd = trailer.getLong();
+        int checksum = trailer.getInt();
+        if (trailer.getInt() != FOOTER_MAGIC || recordsEnd < 0 || recordsEnd > fileSize - FOOTER_TRAILER_SIZE) {
+            return null;
+        }
+        ByteBuffer footer = this.readBytes(segment, recordsEnd, (int) (fileSize - FOOTER_TRAILER_SIZE - recordsEnd));
+        CRC32 crc = new CRC32();
+        crc.update(footer.array(), 0, footer.limit());
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte type = footer.get();
+            byte[] holder = new byte[footer.getShort()];
+            footer.get(holder);
+            entries.add(new Entry(type, new String(holder, StandardCharsets.UTF_8), footer.getInt(), footer.getLong(), footer.getInt()));
+        }
+        segment.size = recordsEnd;
+        return entries;
+    }
+
+    private List<Entry> scan(Segment segment) throws IOException {
+        PlayerVaults.getInstance().getLogger().info("Scanning unsealed vault log segment " + segment.path.getFileName());
+        List<Entry> entries = new ArrayList<>();
+        long fileSize = segment.channel.size();
+        ByteBuffer buffer = this.readBytes(segment, 0, (int) Math.min(fileSize, Integer.MAX_VALUE));
+        while (buffer.hasRemaining()) {
+            int offset = buffer.position();
+            Record record = decodeRecord(buffer);
+            if (record == null) {
+                PlayerVaults.getInstance().getLogger().warning("Dropping " + (fileSize - offset) + " bytes of incomplete data at the end of " + segment.path.getFileName());
+                break;
+            }
+            entries.add(new Entry(record.type(), record.holder(), record.number(), offset, buffer.position() - offset));
+        }
+        segment.size = entries.isEmpty() ? 0 : entries.getLast().offset() + entries.getLast().length();
+        segment.channel.truncate(segment.size);
+        return entries;
+    }
+
+    private void compact() {
+        for (Segment segment : this.segments.values()) {
+            if (this.closing) {
+                return;
+            }
+            if (segment == this.active || !segment.sealed) {
+                continue;
+            }
+            if (segment.size > 0 && segment.liveBytes.get() > segment.size * this.compactionThreshold) {
+                continue;
+            }
+            try {
+                this.compact(segment);
+            } catch (Exception e) {
+                PlayerVaults.getInstance().addException(new IllegalStateException("Failed to compact " + segment.path, e));
+                PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to compact " + segment.path, e);
+                return;
+            }
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        long start = System.currentTimeMillis();
+        List<Entry> entries = this.readFooter(segment);
+        if (entries == null) {
+            throw new IOException("Missing footer");
+        }
+        // Deletes only matter while an older segment may still hold the deleted vault
+        boolean oldest = this.segments.firstKey() == segment.id;
+        int moved = 0;
+        for (Entry entry : entries) {
+            if (this.closing) {
+                return;
+            }
+            synchronized (this.writeLock) {
+                Chain current = this.lookup(entry.holder(), entry.number());
+                if (entry.type() != TYPE_DELETE) {
+                    if (current == null || !current.contains(segment, entry.offset())) {
+                        continue; // Superseded
+                    }
+                    Location location;
+                    if (current.patches().isEmpty()) {
+                        location = this.append(TYPE_SAVE, entry.holder(), entry.number(), this.readBytes(segment, entry.offset(), entry.length()));
+                    } else {
+                        // Patches must never end up before their full copy, so write the vault out in full
+                        Record merged = this.read(current);
+                        ByteBuffer payload = PayloadCodec.encode(merged.payload());
+                        location = this.append(TYPE_SAVE, entry.holder(), entry.number(), encodeRecord(TYPE_SAVE, entry.holder(), entry.number(), merged.size(), payload));
+                    }
+                    this.put(entry.holder(), entry.number(), location, current.size());
+                    moved++;
+                } else if (!oldest && current == null) {
+                    this.append(TYPE_DELETE, entry.holder(), entry.number(), this.readBytes(segment, entry.offset(), entry.length()));
+                }
+            }
+        }
+        // The copies must be on disk before the only other copy is deleted
+        synchronized (this.writeLock) {
+            this.sync();
+        }
+        this.segmentLock.writeLock().lock();
+        try {
+            this.segments.remove(segment.id);
+            segment.channel.close();
+            try {
+                Files.delete(segment.path);
+            } catch (IOException e) {
+                // Windows refuses to delete mapped files, finish on next start
+                Files.createFile(segment.path.resolveSibling(segment.path.getFileName() + DELETED_SUFFIX));
+            }
+        } finally {
+            this.segmentLock.writeLock().unlock();
+        }
+        PlayerVaults.debug("Compacted " + segment.path.getFileName() + ", moved " + moved + " vaults", start);
+    }
+
+    private static ByteBuffer encodeRecord(byte type, String holder, int number, int size, ByteBuffer payload) {
+        byte[] holderBytes = holder.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 2 + holderBytes.length + 4 + 4 + 4 + payload.remaining() + 4);
+        buffer.putInt(RECORD_MAGIC).put(type).putShort((short) holderBytes.length).put(holderBytes);
+        buffer.putInt(number).putInt(size).putInt(payload.remaining()).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        return buffer.flip();
+    }
+
+    /**
+     * Reads the record at the buffer's position and moves past it.
+     *
+     * @return the record, with its payload as a slice of the buffer, or null if the data is incomplete or corrupt
+     */
+    private static Record decodeRecord(ByteBuffer buffer) {
+        int start = buffer.position();
+        try {
+            if (buffer.getInt() != RECORD_MAGIC) {
+                return null;
+            }
+            byte type = buffer.get();
+            byte[] holder = new byte[buffer.getShort()];
+            buffer.get(holder);
+            int number = buffer.getInt();
+            int size = buffer.getInt();
+            int payloadLength = buffer.getInt();
+            if (payloadLength < 0 || payloadLength > buffer.remaining() - 4) {
+                return null;
+            }
+            ByteBuffer payload = buffer.slice(buffer.position(), payloadLength);
+            buffer.position(buffer.position() + payloadLength);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate().position(start).limit(buffer.position()));
+            if ((int) crc.getValue() != buffer.getInt()) {
+                return null;
+            }
+            return new Record(type, new String(holder, StandardCharsets.UTF_8), number, size, payload);
+        } catch (RuntimeException e) {
+            // Buffer underflow or a negative length from a partial write
+            return null;
+        }
+    }
+
+    private static final class Segment {
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private final AtomicLong liveBytes = new AtomicLong();
+        // Records of a sealed segment, when memory-mapping is enabled
+        private volatile ByteBuffer mapped;
+        // Length of the records, not counting the footer
+        private volatile long size;
+        private volatile boolean sealed;
+
+        private Segment(long id, Path path, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    private record Location(Segment segment, long offset, int length) {
+    }
+
+    /**
+     * The last full copy of a vault and the patches written since, oldest first.
+     *
+     * @param size inventory size of the full copy, or -1 if not known
+     */
+    private record Chain(Location base, List<Location> patches, int size) {
+        private Chain with(Location patch) {
+            List<Location> patches = new ArrayList<>(this.patches.size() + 1);
+            patches.addAll(this.patches);
+            patches.add(patch);
+            return new Chain(this.base, List.copyOf(patches), this.size);
+        }
+
+        private boolean contains(Segment segment, long offset) {
+            if (this.base.segment() == segment && this.base.offset() == offset) {
+                return true;
+            }
+            for (Location patch : this.patches) {
+                if (patch.segment() == segment && patch.offset() == offset) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void release() {
+            this.base.segment().liveBytes.addAndGet(-this.base.length());
+            for (Location patch : this.patches) {
+                patch.segment().liveBytes.addAndGet(-patch.length());
+            }
+        }
+    }
+
+    private record Entry(byte type, String holder, int number, long offset, int length) {
+    }
+
+    private record Record(byte type, String holder, int number, int size, ByteBuffer payload) {
+    }
+}
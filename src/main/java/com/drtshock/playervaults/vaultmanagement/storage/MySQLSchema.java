@@ -0,0 +1,247 @@
+package com.drtshock.playervaults.vaultmanagement.storage;
+
+import com.drtshock.playervaults.PlayerVaults;
+import org.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Creates the MySQL tables and migrates them from older layouts.
+ * <p>
+ * The schema version is kept in the {@code playervaults_meta} table. Version 1 is the original table with
+ * {@code VARCHAR} holders and Base64 {@code TEXT} data, version 2 stores holders as bytes, see
+ * {@link #holderKey(String)}, the serialized vault as a {@code MEDIUMBLOB}, and when each row was last written.
+ * <p>
+ * The recorded version is only trusted once it is current. Otherwise the layout of the table decides, so a migration
+ * interrupted between swapping the tables and recording the version is not run again on the new table.
+ */
+final class MySQLSchema {
+    static final int VERSION = 2;
+    static final String TABLE = "playervaults";
+    private static final String META_TABLE = "playervaults_meta";
+    private static final String MIGRATION_TABLE = "playervaults_v2";
+    private static final String LEGACY_TABLE = "playervaults_v1";
+    private static final String VERSION_KEY = "schema_version";
+    private static final int UUID_LENGTH = 16;
+    private static final int COPY_CHUNK_SIZE = 1000;
+
+    private MySQLSchema() {
+    }
+
+    /**
+     * Turns a holder into its key. UUIDs take their 16 raw bytes, anything else, such as group names, is stored as
+     * UTF-8 padded with zeroes to at least 17 bytes, so it can never be mistaken for a UUID.
+     *
+     * @param holder the vault holder
+     * @return the key stored in the holder column
+     */
+    static byte[] holderKey(String holder) {
+        try {
+            UUID uuid = UUID.fromString(holder);
+            // Only exact UUID strings, so the key always maps back to the same holder
+            if (uuid.toString().equals(holder)) {
+                return ByteBuffer.allocate(UUID_LENGTH).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array();
+            }
+        } catch (IllegalArgumentException ignored) {
+        }
+        byte[] name = holder.getBytes(StandardCharsets.UTF_8);
+        return name.length > UUID_LENGTH ? name : Arrays.copyOf(name, UUID_LENGTH + 1);
+    }
+
+    /**
+     * Turns a key back into its holder.
+     *
+     * @param key a key from {@link #holderKey(String)}
+     * @return the holder
+     */
+    static String holder(byte[] key) {
+        if (key.length == UUID_LENGTH) {
+            ByteBuffer buffer = ByteBuffer.wrap(key);
+            return new UUID(buffer.getLong(), buffer.getLong()).toString();
+        }
+        int length = key.length;
+        while (length > 0 && key[length - 1] == 0) {
+            length--;
+        }
+        return new String(key, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates or migrates the tables, so they match the current version.
+     *
+     * @param connection connection to use
+     * @throws SQLException if the database could not be updated
+     */
+    static void update(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + META_TABLE + " (" +
+                    "name VARCHAR(64) NOT NULL PRIMARY KEY," +
+                    "value INT NOT NULL" +
+                    ")");
+        }
+        int version = getVersion(connection);
+        if (version == VERSION) {
+            return;
+        }
+        if (version > VERSION) {
+            throw new SQLException("Database schema version " + version + " is newer than this plugin supports (" + VERSION + ")");
+        }
+        if (!tableExists(connection, TABLE)) {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute(createTable(TABLE));
+            }
+        } else {
+            // Tables created before versions were recorded, or migrated without recording it, have none or an older one
+            int layout = layoutVersion(columns(connection, TABLE));
+            if (layout == 1) {
+                migrateFromVersion1(connection);
+            } else if (layout != VERSION) {
+                throw new SQLException("Table " + TABLE + " has an unknown layout, not migrating it");
+            }
+        }
+        setVersion(connection, VERSION);
+    }
+
+    /**
+     * Tells the schema version of a table from its columns.
+     *
+     * @param columns column names in lower case, mapped to their upper case type names
+     * @return the version, or 0 if the columns match none
+     */
+    static int layoutVersion(Map<String, String> columns) {
+        String holder = columns.get("holder");
+        String data = columns.get("data");
+        if (holder == null || data == null || !columns.containsKey("number") || !columns.containsKey("size")) {
+            return 0;
+        }
+        if (holder.contains("CHAR") && data.contains("TEXT") && !columns.containsKey("last_modified")) {
+            return 1;
+        }
+        if (holder.contains("BINARY") && data.contains("BLOB") && columns.containsKey("last_modified")) {
+            return 2;
+        }
+        return 0;
+    }
+
+    private static Map<String, String> columns(Connection connection, String table) throws SQLException {
+        Map<String, String> columns = new HashMap<>();
+        try (ResultSet rs = connection.getMetaData().getColumns(connection.getCatalog(), null, table, null)) {
+            while (rs.next()) {
+                columns.put(rs.getString("COLUMN_NAME").toLowerCase(Locale.ROOT), rs.getString("TYPE_NAME").toUpperCase(Locale.ROOT));
+            }
+        }
+        return columns;
+    }
+
+    private static String createTable(String name) {
+        return "CREATE TABLE IF NOT EXISTS " + name + " (" +
+                "holder VARBINARY(255) NOT NULL," +
+                "number INT NOT NULL," +
+                "size INT NOT NULL," +
+                "data MEDIUMBLOB NOT NULL," +
+                "last_modified TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3)," +
+                "PRIMARY KEY (holder, number)," +
+                "INDEX idx_last_modified (last_modified)" +
+                ")";
+    }
+
+    /**
+     * Copies the old table into a new one in chunks, walking the primary key, then swaps the two. The old table is
+     * kept as {@value #LEGACY_TABLE}, replacing one left by an earlier migration only after checking once more that
+     * the current table is the old layout. Starts over if a previous attempt was interrupted.
+     */
+    private static void migrateFromVersion1(Connection connection) throws SQLException {
+        PlayerVaults.getInstance().getLogger().info("Migrating MySQL vault table to schema version " + VERSION + ", this may take a while.");
+        long start = System.currentTimeMillis();
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS " + MIGRATION_TABLE);
+            stmt.execute(createTable(MIGRATION_TABLE));
+        }
+        String select = "SELECT holder, number, size, data FROM " + TABLE + " WHERE holder > ? OR (holder = ? AND number > ?) ORDER BY holder, number LIMIT " + COPY_CHUNK_SIZE;
+        String insert = "INSERT INTO " + MIGRATION_TABLE + " (holder, number, size, data) VALUES (?, ?, ?, ?) " +
+                "ON DUPLICATE KEY UPDATE size = VALUES(size), data = VALUES(data)";
+        String lastHolder = "";
+        int lastNumber = Integer.MIN_VALUE;
+        long copied = 0;
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement read = connection.prepareStatement(select); PreparedStatement write = connection.prepareStatement(insert)) {
+            while (true) {
+                read.setString(1, lastHolder);
+                read.setString(2, lastHolder);
+                read.setInt(3, lastNumber);
+                int fetched = 0;
+                try (ResultSet rs = read.executeQuery()) {
+                    while (rs.next()) {
+                        fetched++;
+                        lastHolder = rs.getString("holder");
+                        lastNumber = rs.getInt("number");
+                        String data = rs.getString("data");
+                        if (data == null || data.isEmpty()) {
+                            continue;
+                        }
+                        byte[] bytes;
+                        try {
+                            bytes = Base64Coder.decodeLines(data);
+                        } catch (IllegalArgumentException e) {
+                            PlayerVaults.getInstance().getLogger().warning("Skipping unreadable vault " + lastNumber + " of " + lastHolder + ", it is still in " + LEGACY_TABLE);
+                            continue;
+                        }
+                        write.setBytes(1, holderKey(lastHolder));
+                        write.setInt(2, lastNumber);
+                        write.setInt(3, rs.getInt("size"));
+                        write.setBytes(4, bytes);
+                        write.addBatch();
+                        copied++;
+                    }
+                }
+                write.executeBatch();
+                connection.commit();
+                if (fetched < COPY_CHUNK_SIZE) {
+                    break;
+                }
+                PlayerVaults.debug("Migrated " + copied + " vaults so far");
+            }
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        if (layoutVersion(columns(connection, TABLE)) != 1) {
+            throw new SQLException("Table " + TABLE + " changed during the migration, leaving " + MIGRATION_TABLE + " and " + LEGACY_TABLE + " as they are");
+        }
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS " + LEGACY_TABLE);
+            stmt.execute("RENAME TABLE " + TABLE + " TO " + LEGACY_TABLE + ", " + MIGRATION_TABLE + " TO " + TABLE);
+        }
+        PlayerVaults.getInstance().getLogger().info("Migrated " + copied + " vaults in " + (System.currentTimeMillis() - start) + "ms. The old table was kept as " + LEGACY_TABLE + ".");
+    }
+
+    private static boolean tableExists(Connection connection, String name) throws SQLException {
+        try (ResultSet rs = connection.getMetaData().getTables(connection.getCatalog(), null, name, new String[]{"TABLE"})) {
+            return rs.next();
+        }
+    }
+
+    private static int getVersion(Connection connection) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("SELECT value FROM " + META_TABLE + " WHERE name = ?")) {
+            ps.setString(1, VERSION_KEY);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getInt("value") : 0;
+            }
+        }
+    }
+
+    private static void setVersion(Connection connection, int version) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("INSERT INTO " + META_TABLE + " (name, value) VALUES (?, ?) ON DUPLICATE KEY UPDATE value = VALUES(value)")) {
+            ps.setString(1, VERSION_KEY);
+            ps.setInt(2, version);
+            ps.executeUpdate();
+        }
+    }
+}
@@ -2,89 +2,205 @@ package com.drtshock.playervaults.vaultmanagement.storage;
 
 import com.drtshock.playervaults.PlayerVaults;
 import com.drtshock.playervaults.vaultmanagement.CardboardBoxSerialization;
-import com.drtshock.playervaults.vaultmanagement.VaultHolder;
-import org.bukkit.Bukkit;
 import org.bukkit.inventory.Inventory;
-import org.bukkit.inventory.ItemStack;
 
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 public class MySQLVaultStorage implements VaultStorage {
-    private final String url;
-    private final String username;
-    private final String password;
-
-    public MySQLVaultStorage(String host, int port, String database, String username, String password) {
-        this.url = "jdbc:mysql://" + host + ":" + port + "/" + database + "?useSSL=false";
-        this.username = username;
-        this.password = password;
+    // Lets the driver keep prepared statements per pooled connection, instead of parsing every query again
+    private static final String STATEMENT_CACHE = "&cachePrepStmts=true&prepStmtCacheSize=64&prepStmtCacheSqlLimit=2048&useServerPrepStmts=true";
+    // Sends a batch of saves as one multi-row statement
+    private static final String BATCHING = "&rewriteBatchedStatements=true";
+    private static final String SAVE_SQL = "INSERT INTO playervaults (holder, number, size, data) VALUES (?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE size = VALUES(size), data = VALUES(data), last_modified = CURRENT_TIMESTAMP(3)";
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private final ConnectionPool pool;
+    // Vaults of online players, as stored in the database
+    private final Map<String, Map<Integer, Row>> cachedVaults = new ConcurrentHashMap<>();
+    private final long batchWindow;
+    private final BlockingQueue<PendingSave> saves = new LinkedBlockingQueue<>();
+    private final Thread batchThread;
+    private volatile boolean closing;
+
+    public MySQLVaultStorage(String host, int port, String database, String username, String password, int poolSize, long connectionTimeout, long idleTimeout, long batchWindow) {
+        String url = "jdbc:mysql://" + host + ":" + port + "/" + database + "?useSSL=false" + STATEMENT_CACHE + BATCHING;
+        this.pool = new ConnectionPool(url, username, password, poolSize, connectionTimeout, idleTimeout);
+        this.batchWindow = Math.max(0, batchWindow);
         createTableIfNotExists();
+        this.batchThread = new Thread(this::runBatches, "PlayerVaults MySQL Batch Thread");
+        this.batchThread.setDaemon(true);
+        this.batchThread.start();
     }
 
     private Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(url, username, password);
+        return pool.getConnection();
     }
 
     private void createTableIfNotExists() {
-        String sql = "CREATE TABLE IF NOT EXISTS playervaults (" +
-                "holder VARCHAR(64) NOT NULL," +
-                "number INT NOT NULL," +
-                "size INT NOT NULL," +
-                "data TEXT," +
-                "PRIMARY KEY (holder, number)" +
-                ")";
-        try (Connection conn = getConnection(); Statement stmt = conn.createStatement()) {
-            stmt.execute(sql);
+        try (Connection conn = getConnection()) {
+            MySQLSchema.update(conn);
         } catch (SQLException e) {
             PlayerVaults.getInstance().getLogger().severe("Failed to create playervaults table: " + e.getMessage());
         }
     }
 
+    /**
+     * Saves through the batch thread and waits for it.
+     *
+     * @throws CompletionException if the save failed, so the caller can retry it
+     */
     @Override
     public void saveVault(String holder, int number, Inventory inventory) {
-        String sql = "REPLACE INTO playervaults (holder, number, size, data) VALUES (?, ?, ?, ?)";
-        String serialized = CardboardBoxSerialization.toStorage(inventory, holder);
-        try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, holder);
-            ps.setInt(2, number);
-            ps.setInt(3, inventory.getSize());
-            ps.setString(4, serialized);
+        saveVaultAsync(holder, number, inventory).join();
+    }
+
+    /**
+     * Queues a save for the batch thread. Saves arriving within the batch window of each other are written as one
+     * batch in a single transaction.
+     */
+    @Override
+    public CompletableFuture<Void> saveVaultAsync(String holder, int number, Inventory inventory) {
+        PendingSave save = new PendingSave(holder, number, inventory.getSize(), CardboardBoxSerialization.toBytes(inventory, holder), new CompletableFuture<>());
+        if (closing) {
+            writeSingle(save);
+        } else {
+            saves.add(save);
+        }
+        return save.future();
+    }
+
+    private void runBatches() {
+        List<PendingSave> batch = new ArrayList<>();
+        while (!closing || !saves.isEmpty()) {
+            try {
+                PendingSave first = saves.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWindow);
+                // Stop collecting at a flush, someone is waiting for it
+                while (!batch.getLast().isFlush() && batch.size() < MAX_BATCH_SIZE) {
+                    PendingSave next = saves.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                writeBatch(batch);
+            } catch (Throwable e) {
+                // Fail what is left of this batch, the thread has to keep serving the next ones
+                PlayerVaults.getInstance().addException(new IllegalStateException("Failed to write a batch of " + batch.size() + " vaults", e));
+                PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to write a batch of " + batch.size() + " vaults", e);
+                for (PendingSave save : batch) {
+                    if (save.isFlush()) {
+                        save.future().complete(null);
+                    } else {
+                        save.future().completeExceptionally(e);
+                    }
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<PendingSave> batch) {
+        List<PendingSave> writes = batch.stream().filter(save -> !save.isFlush()).toList();
+        if (!writes.isEmpty()) {
+            long start = System.currentTimeMillis();
+            try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(SAVE_SQL)) {
+                conn.setAutoCommit(false);
+                for (PendingSave save : writes) {
+                    setSaveParameters(ps, save);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                conn.commit();
+                writes.forEach(this::saved);
+                PlayerVaults.debug("Saved " + writes.size() + " vaults in one batch", start);
+            } catch (SQLException | RuntimeException e) {
+                // A single bad row fails the whole batch, so retry them one by one
+                writes.forEach(this::writeSingle);
+            }
+        }
+        for (PendingSave save : batch) {
+            if (save.isFlush()) {
+                save.future().complete(null);
+            }
+        }
+    }
+
+    private void writeSingle(PendingSave save) {
+        try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(SAVE_SQL)) {
+            setSaveParameters(ps, save);
             ps.executeUpdate();
-        } catch (SQLException e) {
-            PlayerVaults.getInstance().getLogger().severe("Failed to save vault: " + e.getMessage());
+        } catch (SQLException | RuntimeException e) {
+            save.future().completeExceptionally(e);
+            return;
         }
+        saved(save);
+    }
+
+    private void setSaveParameters(PreparedStatement ps, PendingSave save) throws SQLException {
+        ps.setBytes(1, MySQLSchema.holderKey(save.holder()));
+        ps.setInt(2, save.number());
+        ps.setInt(3, save.size());
+        ps.setBytes(4, save.data());
+    }
+
+    private void saved(PendingSave save) {
+        Row row = new Row(save.size(), save.data());
+        cachedVaults.computeIfPresent(save.holder(), (key, vaults) -> {
+            vaults.put(save.number(), row);
+            return vaults;
+        });
+        save.future().complete(null);
+    }
+
+    /**
+     * Waits until every save queued so far has been written, so a following delete or read is not overtaken by an
+     * older save still in the batch queue.
+     */
+    private void flushSaves() {
+        if (!batchThread.isAlive() || Thread.currentThread() == batchThread) {
+            return;
+        }
+        PendingSave flush = new PendingSave(null, 0, 0, null, new CompletableFuture<>());
+        saves.add(flush);
+        flush.future().join();
     }
 
     @Override
-    public Inventory loadVault(String holder, int number, int size) {
-        Inventory inventory;
+    public VaultContents loadContents(String holder, int number, int size) {
+        Map<Integer, Row> cached = cachedVaults.get(holder);
+        if (cached != null) {
+            Row row = cached.get(number);
+            return row == null ? null : toContents(holder, size, row);
+        }
         String sql = "SELECT data, size FROM playervaults WHERE holder = ? AND number = ?";
         try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, holder);
+            ps.setBytes(1, MySQLSchema.holderKey(holder));
             ps.setInt(2, number);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    String serialized = rs.getString("data");
-                    int vaultSize = rs.getInt("size");
-                    if (size <= 0 || size % 9 != 0) {
-                        size = vaultSize > 0 ? vaultSize : PlayerVaults.getInstance().getDefaultVaultSize();
-                    }
-                    ItemStack[] contents = CardboardBoxSerialization.fromStorage(serialized, holder);
-                    inventory = Bukkit.createInventory(new VaultHolder(number), size, PlayerVaults.getInstance().getVaultTitle(String.valueOf(number)));
-                    if (contents != null) {
-                        if (contents.length > size) {
-                            for (ItemStack stack : contents) {
-                                if (stack != null) {
-                                    inventory.addItem(stack);
-                                }
-                            }
-                        } else {
-                            inventory.setContents(contents);
-                        }
-                    }
-                    return inventory;
+                    return toContents(holder, size, new Row(rs.getInt("size"), rs.getBytes("data")));
                 }
             }
         } catch (SQLException e) {
@@ -93,11 +209,23 @@ public class MySQLVaultStorage implements VaultStorage {
         return null;
     }
 
+    private VaultContents toContents(String holder, int size, Row row) {
+        if (size <= 0 || size % 9 != 0) {
+            size = row.size() > 0 ? row.size() : PlayerVaults.getInstance().getDefaultVaultSize();
+        }
+        LazyVaultContents contents = CardboardBoxSerialization.fromBytesLazy(row.data(), holder);
+        return new VaultContents(size, contents);
+    }
+
     @Override
     public boolean vaultExists(String holder, int number) {
+        Map<Integer, Row> cached = cachedVaults.get(holder);
+        if (cached != null) {
+            return cached.containsKey(number);
+        }
         String sql = "SELECT 1 FROM playervaults WHERE holder = ? AND number = ?";
         try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, holder);
+            ps.setBytes(1, MySQLSchema.holderKey(holder));
             ps.setInt(2, number);
             try (ResultSet rs = ps.executeQuery()) {
                 return rs.next();
@@ -110,10 +238,14 @@ public class MySQLVaultStorage implements VaultStorage {
 
     @Override
     public Set<Integer> getVaultNumbers(String holder) {
+        Map<Integer, Row> cached = cachedVaults.get(holder);
+        if (cached != null) {
+            return new HashSet<>(cached.keySet());
+        }
         Set<Integer> vaults = new HashSet<>();
         String sql = "SELECT number FROM playervaults WHERE holder = ?";
         try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, holder);
+            ps.setBytes(1, MySQLSchema.holderKey(holder));
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
                     vaults.add(rs.getInt("number"));
@@ -125,34 +257,109 @@ public class MySQLVaultStorage implements VaultStorage {
         return vaults;
     }
 
+    @Override
+    public Set<String> getHolders() {
+        Set<String> holders = new HashSet<>();
+        String sql = "SELECT DISTINCT holder FROM playervaults";
+        try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql); ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                holders.add(MySQLSchema.holder(rs.getBytes("holder")));
+            }
+        } catch (SQLException e) {
+            PlayerVaults.getInstance().getLogger().severe("Failed to get vault holders: " + e.getMessage());
+        }
+        return holders;
+    }
+
     @Override
     public void deleteVault(String holder, int number) {
+        flushSaves();
         String sql = "DELETE FROM playervaults WHERE holder = ? AND number = ?";
         try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, holder);
+            ps.setBytes(1, MySQLSchema.holderKey(holder));
             ps.setInt(2, number);
             ps.executeUpdate();
         } catch (SQLException e) {
             PlayerVaults.getInstance().getLogger().severe("Failed to delete vault: " + e.getMessage());
+            return;
         }
+        cachedVaults.computeIfPresent(holder, (key, vaults) -> {
+            vaults.remove(number);
+            return vaults;
+        });
     }
 
     @Override
     public void deleteAllVaults(String holder) {
+        flushSaves();
         String sql = "DELETE FROM playervaults WHERE holder = ?";
         try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, holder);
+            ps.setBytes(1, MySQLSchema.holderKey(holder));
             ps.executeUpdate();
         } catch (SQLException e) {
             PlayerVaults.getInstance().getLogger().severe("Failed to delete all vaults: " + e.getMessage());
+            return;
         }
+        cachedVaults.computeIfPresent(holder, (key, vaults) -> {
+            vaults.clear();
+            return vaults;
+        });
     }
 
+    /**
+     * Reads all vaults of a holder in one query and keeps them in memory until
+     * {@link #removePlayerCachedVault(String)}, so opening them later needs no round trip to the database.
+     *
+     * @param holder The player's unique identifier.
+     */
     @Override
     public void cachePlayerVault(String holder) {
+        flushSaves();
+        Map<Integer, Row> vaults = new ConcurrentHashMap<>();
+        String sql = "SELECT number, size, data FROM playervaults WHERE holder = ?";
+        try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setBytes(1, MySQLSchema.holderKey(holder));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    vaults.put(rs.getInt("number"), new Row(rs.getInt("size"), rs.getBytes("data")));
+                }
+            }
+        } catch (SQLException e) {
+            PlayerVaults.getInstance().getLogger().severe("Failed to cache vaults: " + e.getMessage());
+            return;
+        }
+        cachedVaults.put(holder, vaults);
+        PlayerVaults.debug("Cached " + vaults.size() + " vaults for " + holder);
     }
 
     @Override
     public void removePlayerCachedVault(String holder) {
+        cachedVaults.remove(holder);
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        try {
+            batchThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<PendingSave> remaining = new ArrayList<>();
+        saves.drainTo(remaining);
+        writeBatch(remaining);
+        pool.close();
+    }
+
+    private record Row(int size, byte[] data) {
+    }
+
+    /**
+     * A save waiting for the batch thread. One without holder only marks a point in the queue, see {@link #flushSaves()}.
+     */
+    private record PendingSave(String holder, int number, int size, byte[] data, CompletableFuture<Void> future) {
+        boolean isFlush() {
+            return holder == null;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,147 @@
+package com.drtshock.playervaults.vaultmanagement.storage;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The second tier of a {@link VaultCache}, keeping holders' vaults outside the Java heap in direct buffers, so large
+ * amounts of rarely used vault data do not grow the old generation or lengthen garbage collection pauses.
+ * <p>
+ * Memory is split into fixed size slabs, allocated when first needed and filled one after another. Once every slab has
+ * been used, the oldest one is emptied and reused, dropping all holders in it. A holder lives in at most one tier,
+ * reading it from here moves it back to the heap.
+ */
+public final class OffHeapVaultCache {
+    private static final int MIN_SLAB_SIZE = 1024 * 1024;
+    private static final int MAX_SLAB_SIZE = 64 * 1024 * 1024;
+
+    private record Location(int slab, int offset, int length) {
+    }
+
+    private final int slabSize;
+    private final ByteBuffer[] slabs;
+    // All below guarded by this
+    private final Map<String, Location> index = new HashMap<>();
+    private int slab;
+    private int position;
+    private long used;
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * Creates a new cache. No memory is allocated until holders are stored.
+     *
+     * @param capacity maximum number of bytes to use, rounded up to whole slabs
+     */
+    OffHeapVaultCache(long capacity) {
+        this.slabSize = (int) Math.min(capacity, Math.max(MIN_SLAB_SIZE, Math.min(MAX_SLAB_SIZE, capacity / 16)));
+        this.slabs = new ByteBuffer[(int) ((capacity + this.slabSize - 1) / this.slabSize)];
+    }
+
+    /**
+     * Stores the vaults of a holder, replacing any earlier copy. Holders with values that are not readable vaults, or
+     * too large for a slab, are not stored.
+     *
+     * @param holder the holder
+     * @param entry  the vaults
+     */
+    synchronized void put(String holder, VaultCache.Entry entry) {
+        this.take(holder);
+        if (!entry.other().isEmpty()) {
+            return;
+        }
+        long length = Integer.BYTES;
+        for (byte[] contents : entry.vaults().values()) {
+            length += 2 * Integer.BYTES + contents.length;
+        }
+        if (length > this.slabSize) {
+            return;
+        }
+        if (this.position + length > this.slabSize) {
+            this.slab = (this.slab + 1) % this.slabs.length;
+            this.position = 0;
+            this.clear(this.slab);
+        }
+        if (this.slabs[this.slab] == null) {
+            this.slabs[this.slab] = ByteBuffer.allocateDirect(this.slabSize);
+        }
+        ByteBuffer buffer = this.slabs[this.slab].duplicate().position(this.position);
+        buffer.putInt(entry.vaults().size());
+        entry.vaults().forEach((number, contents) -> buffer.putInt(number).putInt(contents.length).put(contents));
+        this.index.put(holder, new Location(this.slab, this.position, (int) length));
+        this.position += (int) length;
+        this.used += length;
+    }
+
+    /**
+     * Gets the vaults of a holder, copied back to the heap.
+     *
+     * @param holder the holder
+     * @param remove whether to also drop the off-heap copy
+     * @return the vaults, or null if the holder is not stored
+     */
+    synchronized VaultCache.Entry get(String holder, boolean remove) {
+        Location location = remove ? this.take(holder) : this.index.get(holder);
+        if (location == null) {
+            return null;
+        }
+        if (remove) {
+            this.hits.increment();
+        }
+        ByteBuffer buffer = this.slabs[location.slab()].duplicate().position(location.offset());
+        SortedMap<Integer, byte[]> vaults = new TreeMap<>();
+        for (int count = buffer.getInt(); count > 0; count--) {
+            int number = buffer.getInt();
+            byte[] contents = new byte[buffer.getInt()];
+            buffer.get(contents);
+            vaults.put(number, contents);
+        }
+        return new VaultCache.Entry(vaults, Map.of());
+    }
+
+    synchronized void remove(String holder) {
+        this.take(holder);
+    }
+
+    private Location take(String holder) {
+        Location location = this.index.remove(holder);
+        if (location != null) {
+            this.used -= location.length();
+        }
+        return location;
+    }
+
+    private void clear(int slab) {
+        this.index.values().removeIf(location -> {
+            if (location.slab() == slab) {
+                this.used -= location.length();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    public synchronized int size() {
+        return this.index.size();
+    }
+
+    /**
+     * Gets the bytes taken by stored holders. Space of replaced holders is only reused once their slab is.
+     *
+     * @return the bytes in use
+     */
+    public synchronized long getUsed() {
+        return this.used;
+    }
+
+    public long getCapacity() {
+        return (long) this.slabSize * this.slabs.length;
+    }
+}
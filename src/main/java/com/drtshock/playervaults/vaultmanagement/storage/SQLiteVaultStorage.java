@@ -0,0 +1,214 @@
+package com.drtshock.playervaults.vaultmanagement.storage;
+
+import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.vaultmanagement.CardboardBoxSerialization;
+import org.bukkit.inventory.Inventory;
+
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Stores vaults in an embedded SQLite database, one row per vault with the payload as a BLOB.
+ * <p>
+ * The database runs in WAL mode, so readers never wait for the writer and a crash mid-write only loses that write.
+ * Every thread gets one long-lived connection of its own, as SQLite connections must not be shared between threads
+ * while in use. Connections of threads that have died are closed the next time a connection is opened.
+ */
+public class SQLiteVaultStorage implements VaultStorage {
+    private static final int BUSY_TIMEOUT = 5000;
+
+    private final String url;
+    private final Map<Thread, Connection> connections = new ConcurrentHashMap<>();
+
+    public SQLiteVaultStorage(Path file) {
+        this.url = "jdbc:sqlite:" + file.toAbsolutePath();
+        createTableIfNotExists();
+    }
+
+    private Connection getConnection() throws SQLException {
+        Thread thread = Thread.currentThread();
+        Connection connection = this.connections.get(thread);
+        if (connection != null && !connection.isClosed()) {
+            return connection;
+        }
+        closeDeadConnections();
+        connection = DriverManager.getConnection(this.url);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA journal_mode=WAL");
+            // Safe in WAL mode, a crash can lose the last commits but never corrupt the database
+            stmt.execute("PRAGMA synchronous=NORMAL");
+            stmt.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT);
+        }
+        this.connections.put(thread, connection);
+        return connection;
+    }
+
+    private void closeDeadConnections() {
+        Iterator<Map.Entry<Thread, Connection>> iterator = this.connections.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Thread, Connection> entry = iterator.next();
+            if (!entry.getKey().isAlive()) {
+                iterator.remove();
+                closeQuietly(entry.getValue());
+            }
+        }
+    }
+
+    private void createTableIfNotExists() {
+        String sql = "CREATE TABLE IF NOT EXISTS playervaults (" +
+                "holder TEXT NOT NULL," +
+                "number INTEGER NOT NULL," +
+                "size INTEGER NOT NULL," +
+                "data BLOB NOT NULL," +
+                "PRIMARY KEY (holder, number)" +
+                ") WITHOUT ROWID";
+        try (Statement stmt = getConnection().createStatement()) {
+            stmt.execute(sql);
+        } catch (SQLException e) {
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to create playervaults table", e));
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to create playervaults table", e);
+        }
+    }
+
+    @Override
+    public void saveVault(String holder, int number, Inventory inventory) {
+        String sql = "INSERT OR REPLACE INTO playervaults (holder, number, size, data) VALUES (?, ?, ?, ?)";
+        byte[] serialized = CardboardBoxSerialization.toBytes(inventory, holder);
+        try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
+            ps.setString(1, holder);
+            ps.setInt(2, number);
+            ps.setInt(3, inventory.getSize());
+            ps.setBytes(4, serialized);
+            ps.executeUpdate();
+            PlayerVaults.debug("Saved vault " + number + " for " + holder);
+        } catch (SQLException e) {
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to save vault " + number + " for: " + holder, e));
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to save vault " + number + " for: " + holder, e);
+        }
+    }
+
+    @Override
+    public VaultContents loadContents(String holder, int number, int size) {
+        String sql = "SELECT data, size FROM playervaults WHERE holder = ? AND number = ?";
+        try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
+            ps.setString(1, holder);
+            ps.setInt(2, number);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    byte[] serialized = rs.getBytes("data");
+                    int vaultSize = rs.getInt("size");
+                    if (size <= 0 || size % 9 != 0) {
+                        size = vaultSize > 0 && vaultSize % 9 == 0 ? vaultSize : PlayerVaults.getInstance().getDefaultVaultSize();
+                    }
+                    LazyVaultContents contents = CardboardBoxSerialization.fromBytesLazy(serialized, holder);
+                    return new VaultContents(size, contents);
+                }
+            }
+        } catch (SQLException e) {
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to load vault " + number + " for: " + holder, e));
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to load vault " + number + " for: " + holder, e);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean vaultExists(String holder, int number) {
+        String sql = "SELECT 1 FROM playervaults WHERE holder = ? AND number = ?";
+        try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
+            ps.setString(1, holder);
+            ps.setInt(2, number);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to check vault " + number + " for: " + holder, e);
+        }
+        return false;
+    }
+
+    @Override
+    public Set<Integer> getVaultNumbers(String holder) {
+        Set<Integer> vaults = new HashSet<>();
+        String sql = "SELECT number FROM playervaults WHERE holder = ?";
+        try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
+            ps.setString(1, holder);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    vaults.add(rs.getInt("number"));
+                }
+            }
+        } catch (SQLException e) {
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to list vaults for: " + holder, e);
+        }
+        return vaults;
+    }
+
+    @Override
+    public Set<String> getHolders() {
+        Set<String> holders = new HashSet<>();
+        String sql = "SELECT DISTINCT holder FROM playervaults";
+        try (PreparedStatement ps = getConnection().prepareStatement(sql); ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                holders.add(rs.getString("holder"));
+            }
+        } catch (SQLException e) {
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to list vault holders", e);
+        }
+        return holders;
+    }
+
+    @Override
+    public void deleteVault(String holder, int number) {
+        String sql = "DELETE FROM playervaults WHERE holder = ? AND number = ?";
+        try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
+            ps.setString(1, holder);
+            ps.setInt(2, number);
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to delete vault " + number + " for: " + holder, e));
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to delete vault " + number + " for: " + holder, e);
+        }
+    }
+
+    @Override
+    public void deleteAllVaults(String holder) {
+        String sql = "DELETE FROM playervaults WHERE holder = ?";
+        try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
+            ps.setString(1, holder);
+            ps.executeUpdate();
+            PlayerVaults.debug("Deleted vaults for " + holder);
+        } catch (SQLException e) {
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to delete vaults for: " + holder, e));
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to delete vaults for: " + holder, e);
+        }
+    }
+
+    @Override
+    public void cachePlayerVault(String holder) {
+    }
+
+    @Override
+    public void removePlayerCachedVault(String holder) {
+    }
+
+    @Override
+    public void close() {
+        for (Connection connection : this.connections.values()) {
+            closeQuietly(connection);
+        }
+        this.connections.clear();
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.drtshock.playervaults.vaultmanagement.storage;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the stored vaults of recently used holders in memory, as the raw serialized bytes of each vault.
+ * <p>
+ * The cache is bounded by the bytes it retains rather than by the number of holders, so a few holders with many large
+ * vaults cannot push it past its budget. Once full, the least recently used holders are dropped, or moved to the
+ * {@link OffHeapVaultCache} if there is one. Entries are immutable, changing a holder's vaults replaces its entry.
+ */
+public final class VaultCache {
+    // Rough cost of a cached holder and of each vault in it, on top of the payload bytes
+    private static final int HOLDER_OVERHEAD = 128;
+    private static final int VAULT_OVERHEAD = 48;
+
+    /**
+     * The stored vaults of one holder.
+     *
+     * @param vaults serialized contents by vault number
+     * @param other  top level values that are not readable vaults, kept as they were so they are written back
+     */
+    public record Entry(SortedMap<Integer, byte[]> vaults, Map<String, Object> other) {
+        public Entry {
+            vaults = Collections.unmodifiableSortedMap(new TreeMap<>(vaults));
+            other = Collections.unmodifiableMap(new LinkedHashMap<>(other));
+        }
+
+        /**
+         * Gets a copy of this entry with one vault replaced, or removed if the contents are null.
+         *
+         * @param number   the vault number
+         * @param contents the serialized contents, or null to remove the vault
+         * @return the new entry
+         */
+        public Entry with(int number, byte[] contents) {
+            TreeMap<Integer, byte[]> vaults = new TreeMap<>(this.vaults);
+            Map<String, Object> other = new LinkedHashMap<>(this.other);
+            other.remove("vault" + number);
+            if (contents == null) {
+                vaults.remove(number);
+            } else {
+                vaults.put(number, contents);
+            }
+            return new Entry(vaults, other);
+        }
+
+        private long weight(String holder) {
+            long weight = HOLDER_OVERHEAD + holder.length() * 2L;
+            for (byte[] contents : this.vaults.values()) {
+                weight += VAULT_OVERHEAD + contents.length;
+            }
+            // Values that could not be decoded are usually text, count them as such
+            for (Object value : this.other.values()) {
+                weight += VAULT_OVERHEAD + String.valueOf(value).length() * 2L;
+            }
+            return weight;
+        }
+    }
+
+    private record Weighted(Entry entry, long weight) {
+    }
+
+    private final long maxWeight;
+    private final OffHeapVaultCache offHeap;
+    // Guarded by itself, access ordered for LRU eviction
+    private final LinkedHashMap<String, Weighted> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxWeight   maximum number of bytes to retain on the heap, 0 or less to disable caching
+     * @param offHeapSize maximum number of bytes to retain off the heap, 0 or less for none
+     */
+    public VaultCache(long maxWeight, long offHeapSize) {
+        this.maxWeight = maxWeight;
+        this.offHeap = offHeapSize > 0 && maxWeight > 0 ? new OffHeapVaultCache(offHeapSize) : null;
+    }
+
+    /**
+     * Gets the cached vaults of a holder.
+     *
+     * @param holder the holder
+     * @return the entry, or null if it is not cached
+     */
+    public Entry get(String holder) {
+        Entry entry;
+        synchronized (this.entries) {
+            Weighted weighted = this.entries.get(holder);
+            if (weighted != null) {
+                this.hits.increment();
+                return weighted.entry();
+            }
+            // Moved back in the same step, so a write in between cannot be overwritten by the old entry
+            entry = this.offHeap == null ? null : this.offHeap.get(holder, true);
+            if (entry != null) {
+                this.put(holder, entry);
+            }
+        }
+        if (entry == null) {
+            this.misses.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Gets the cached vaults of a holder without counting towards the hit statistics.
+     *
+     * @param holder the holder
+     * @return the entry, or null if it is not cached
+     */
+    public Entry peek(String holder) {
+        synchronized (this.entries) {
+            Weighted weighted = this.entries.get(holder);
+            if (weighted != null) {
+                return weighted.entry();
+            }
+        }
+        return this.offHeap == null ? null : this.offHeap.get(holder, false);
+    }
+
+    /**
+     * Caches the vaults of a holder, replacing any earlier entry and dropping the least recently used holders as needed.
+     * Holders too large to ever fit on the heap go straight to the off-heap tier.
+     *
+     * @param holder the holder
+     * @param entry  the vaults
+     */
+    public void put(String holder, Entry entry) {
+        long entryWeight = entry.weight(holder);
+        synchronized (this.entries) {
+            this.remove(holder);
+            if (entryWeight > this.maxWeight) {
+                this.demote(holder, entry);
+                return;
+            }
+            this.entries.put(holder, new Weighted(entry, entryWeight));
+            this.weight += entryWeight;
+            Iterator<Map.Entry<String, Weighted>> iterator = this.entries.entrySet().iterator();
+            while (this.weight > this.maxWeight && iterator.hasNext()) {
+                Map.Entry<String, Weighted> eldest = iterator.next();
+                this.weight -= eldest.getValue().weight();
+                iterator.remove();
+                this.evictions.increment();
+                this.demote(eldest.getKey(), eldest.getValue().entry());
+            }
+        }
+    }
+
+    /**
+     * Moves the vaults of a holder that is not expected to be used soon off the heap, or drops them if there is no
+     * off-heap tier.
+     *
+     * @param holder the holder
+     */
+    public void release(String holder) {
+        synchronized (this.entries) {
+            Weighted removed = this.remove(holder);
+            if (removed != null) {
+                this.demote(holder, removed.entry());
+            }
+        }
+    }
+
+    /**
+     * Drops the vaults of a holder from both tiers.
+     *
+     * @param holder the holder
+     */
+    public void invalidate(String holder) {
+        synchronized (this.entries) {
+            this.remove(holder);
+        }
+    }
+
+    private Weighted remove(String holder) {
+        if (this.offHeap != null) {
+            this.offHeap.remove(holder);
+        }
+        Weighted removed = this.entries.remove(holder);
+        if (removed != null) {
+            this.weight -= removed.weight();
+        }
+        return removed;
+    }
+
+    private void demote(String holder, Entry entry) {
+        if (this.offHeap != null) {
+            this.offHeap.put(holder, entry);
+        }
+    }
+
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    public long getWeight() {
+        synchronized (this.entries) {
+            return this.weight;
+        }
+    }
+
+    public long getMaxWeight() {
+        return this.maxWeight;
+    }
+
+    /**
+     * Gets the off-heap tier.
+     *
+     * @return the tier, or null if there is none
+     */
+    public OffHeapVaultCache getOffHeap() {
+        return this.offHeap;
+    }
+}
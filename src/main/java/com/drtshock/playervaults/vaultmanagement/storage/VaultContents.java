@@ -0,0 +1,20 @@
+package com.drtshock.playervaults.vaultmanagement.storage;
+
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * The stored contents of a vault, read without creating an inventory, so they can be loaded off the main thread.
+ *
+ * @param size  the inventory size to use
+ * @param items the items, deserialized when first needed, may be null if they could not be read
+ */
+public record VaultContents(int size, LazyVaultContents items) {
+    /**
+     * Deserializes every item, for putting them in an inventory.
+     *
+     * @return the items, or null if they could not be read
+     */
+    public ItemStack[] contents() {
+        return this.items == null ? null : this.items.toArray();
+    }
+}
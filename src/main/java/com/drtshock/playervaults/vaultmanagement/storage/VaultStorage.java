@@ -1,18 +1,66 @@
 package com.drtshock.playervaults.vaultmanagement.storage;
 
+import com.drtshock.playervaults.vaultmanagement.VaultHolder;
 import org.bukkit.inventory.Inventory;
 
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public interface VaultStorage {
     void saveVault(String holder, int number, Inventory inventory);
 
-    Inventory loadVault(String holder, int number, int size);
+    /**
+     * Saves a vault, possibly finishing later on another thread. Storages that can combine several saves into one
+     * write override this, by default the vault is saved right away.
+     *
+     * @param holder    The vault holder.
+     * @param number    The vault number.
+     * @param inventory The vault contents, not modified until the returned future completes.
+     * @return a future completed once the vault has been written, or completed exceptionally if it failed
+     */
+    default CompletableFuture<Void> saveVaultAsync(String holder, int number, Inventory inventory) {
+        try {
+            saveVault(holder, number, inventory);
+            return CompletableFuture.completedFuture(null);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Reads the contents of a vault. Does not touch the Bukkit API, so it is safe to call from any thread.
+     *
+     * @param holder The vault holder.
+     * @param number The vault number.
+     * @param size   The wanted size, or a value that is not a multiple of 9 to use the stored size.
+     * @return the contents, or null if the vault does not exist
+     */
+    VaultContents loadContents(String holder, int number, int size);
+
+    /**
+     * Loads a vault into a new inventory.
+     *
+     * @param holder The vault holder.
+     * @param number The vault number.
+     * @param size   The wanted size, or a value that is not a multiple of 9 to use the stored size.
+     * @return the inventory, or null if the vault does not exist
+     */
+    default Inventory loadVault(String holder, int number, int size) {
+        VaultContents contents = loadContents(holder, number, size);
+        return contents == null ? null : VaultHolder.createInventory(number, contents.size(), contents.contents());
+    }
 
     boolean vaultExists(String holder, int number);
 
     Set<Integer> getVaultNumbers(String holder);
 
+    /**
+     * Gets every holder with stored vaults. May be slow, meant for background jobs.
+     *
+     * @return the holders
+     */
+    Set<String> getHolders();
+
     void deleteVault(String holder, int number);
 
     void deleteAllVaults(String holder);
@@ -26,4 +74,28 @@ public interface VaultStorage {
     void cachePlayerVault(String holder);
 
     void removePlayerCachedVault(String holder);
+
+    /**
+     * Gets the cache of stored vaults, for storages that keep one.
+     *
+     * @return the cache, or null if vaults are not cached
+     */
+    default VaultCache getCache() {
+        return null;
+    }
+
+    /**
+     * Makes the writes done so far durable, for storages that do not do so on every write. Called by the save queue
+     * once it has no more writes ready, so a batch of saves shares one sync.
+     *
+     * @throws java.io.UncheckedIOException if syncing failed, the writes since the last flush may be lost
+     */
+    default void flush() {
+    }
+
+    /**
+     * Releases any resources held by this storage. Called once all pending saves have been written.
+     */
+    default void close() {
+    }
 }
@@ -2,77 +2,122 @@ package com.drtshock.playervaults.vaultmanagement.storage;
 
 import com.drtshock.playervaults.PlayerVaults;
 import com.drtshock.playervaults.vaultmanagement.CardboardBoxSerialization;
-import com.drtshock.playervaults.vaultmanagement.VaultHolder;
-import org.bukkit.Bukkit;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.inventory.Inventory;
-import org.bukkit.inventory.ItemStack;
+import org.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.logging.Level;
 
+/**
+ * Stores each holder's vaults in a YAML file, as Base64 text.
+ * <p>
+ * Recently used holders are kept in a {@link VaultCache} as the decoded bytes of their vaults, which is what every save
+ * has to write back to the file along with the changed vault.
+ */
 public class YamlVaultStorage implements VaultStorage {
 
     private static final String VAULTKEY = "vault%d";
     private final File directory = PlayerVaults.getInstance().getVaultData();
-    private final Map<String, YamlConfiguration> cachedVaultFiles = new ConcurrentHashMap<>();
+    private final VaultCache cache;
+    // Reading a file into the cache must not race with a save of the same holder, or stale vaults could be cached
+    private final Object[] locks = new Object[64];
+
+    public YamlVaultStorage(long cacheSize, long offHeapCacheSize) {
+        this.cache = new VaultCache(cacheSize, offHeapCacheSize);
+        for (int i = 0; i < this.locks.length; i++) {
+            this.locks[i] = new Object();
+        }
+    }
 
     @Override
     public void saveVault(String holder, int number, Inventory inventory) {
-        YamlConfiguration yaml = getPlayerVaultFile(holder);
-        String serialized = CardboardBoxSerialization.toStorage(inventory, holder);
-        yaml.set(String.format(VAULTKEY, number), serialized);
-        saveFileSync(holder, yaml);
+        byte[] serialized = CardboardBoxSerialization.toBytes(inventory, holder);
+        synchronized (lock(holder)) {
+            VaultCache.Entry entry = getEntry(holder).with(number, serialized);
+            cache.put(holder, entry);
+            saveFileSync(holder, entry);
+        }
     }
 
     @Override
-    public Inventory loadVault(String holder, int number, int size) {
+    public VaultContents loadContents(String holder, int number, int size) {
         if (size <= 0 || size % 9 != 0) {
             size = PlayerVaults.getInstance().getDefaultVaultSize();
         }
-        YamlConfiguration playerFile = getPlayerVaultFile(holder);
-        String serialized = playerFile.getString(String.format(VAULTKEY, number));
-        if (serialized == null) {
+        VaultCache.Entry entry = getEntry(holder);
+        byte[] serialized = entry.vaults().get(number);
+        LazyVaultContents contents;
+        if (serialized != null) {
+            contents = serialized.length == 0 ? LazyVaultContents.of(CardboardBoxSerialization.EMPTY) : CardboardBoxSerialization.fromBytesLazy(serialized, holder);
+        } else if (entry.other().get(String.format(VAULTKEY, number)) instanceof String text) {
+            // Not valid Base64, let the usual error reporting show what is there
+            contents = CardboardBoxSerialization.fromStorageLazy(text, holder);
+        } else {
             return null;
         }
-        ItemStack[] contents = CardboardBoxSerialization.fromStorage(serialized, holder);
-        Inventory inventory = Bukkit.createInventory(new VaultHolder(number), size, PlayerVaults.getInstance().getVaultTitle(String.valueOf(number)));
-        if (contents != null) {
-            if (contents.length > size) {
-                for (ItemStack stack : contents) {
-                    if (stack != null) {
-                        inventory.addItem(stack);
-                    }
-                }
-            } else {
-                inventory.setContents(contents);
-            }
-        }
-        return inventory;
+        return new VaultContents(size, contents);
     }
 
     @Override
     public boolean vaultExists(String holder, int number) {
-        File file = new File(directory, holder + ".yml");
-        if (!file.exists()) {
-            return false;
+        VaultCache.Entry cached = cache.peek(holder);
+        if (cached != null) {
+            return cached.vaults().containsKey(number) || cached.other().containsKey(String.format(VAULTKEY, number));
         }
-        return getPlayerVaultFile(holder).contains(String.format(VAULTKEY, number));
+        return getVaultNumbers(holder).contains(number);
     }
 
     @Override
     public Set<Integer> getVaultNumbers(String holder) {
-        Set<Integer> vaults = new HashSet<>();
-        YamlConfiguration file = getPlayerVaultFile(holder);
-        if (file == null) {
-            return vaults;
+        VaultCache.Entry cached = cache.peek(holder);
+        if (cached == null) {
+            return scanVaultNumbers(holder);
         }
-        for (String s : file.getKeys(false)) {
+        Set<Integer> vaults = getVaultNumbers(cached.other().keySet());
+        vaults.addAll(cached.vaults().keySet());
+        return vaults;
+    }
+
+    /**
+     * Finds the vault numbers in a file that is not cached, from its top level keys alone, without parsing the YAML
+     * or decoding any vault.
+     */
+    private Set<Integer> scanVaultNumbers(String holder) {
+        File file = new File(directory, holder + ".yml");
+        if (!file.exists()) {
+            return new HashSet<>();
+        }
+        Set<String> keys = new HashSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int colon = line.indexOf(':');
+                // Vault data is indented or on the same line, only top level keys start at the first column
+                if (colon > 0 && line.startsWith("vault")) {
+                    keys.add(line.substring(0, colon));
+                }
+            }
+        } catch (IOException e) {
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to read vault file for: " + holder, e);
+        }
+        return getVaultNumbers(keys);
+    }
+
+    private static Set<Integer> getVaultNumbers(Set<String> keys) {
+        Set<Integer> vaults = new HashSet<>();
+        for (String s : keys) {
             try {
                 if (s.startsWith("vault")) {
                     int number = Integer.parseInt(s.substring(5));
@@ -85,76 +130,135 @@ public class YamlVaultStorage implements VaultStorage {
         return vaults;
     }
 
+    @Override
+    public Set<String> getHolders() {
+        Set<String> holders = new HashSet<>();
+        String[] files = this.directory.list((dir, name) -> name.endsWith(".yml"));
+        for (String name : files != null ? files : new String[0]) {
+            holders.add(name.substring(0, name.length() - ".yml".length()));
+        }
+        return holders;
+    }
+
     @Override
     public void deleteVault(String holder, int number) {
         File file = new File(directory, holder + ".yml");
-        if (!file.exists()) {
-            return;
-        }
-        YamlConfiguration playerFile = YamlConfiguration.loadConfiguration(file);
-        playerFile.set(String.format(VAULTKEY, number), null);
-        if (cachedVaultFiles.containsKey(holder)) {
-            cachedVaultFiles.put(holder, playerFile);
-        }
-        try {
-            playerFile.save(file);
-        } catch (IOException ignored) {
+        synchronized (lock(holder)) {
+            if (!file.exists()) {
+                return;
+            }
+            VaultCache.Entry entry = getEntry(holder).with(number, null);
+            cache.put(holder, entry);
+            try {
+                AtomicFiles.write(file.toPath(), toYaml(entry).saveToString().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                PlayerVaults.getInstance().addException(new IllegalStateException("Failed to save vault file for: " + holder, e));
+                PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to save vault file for: " + holder, e);
+            }
         }
     }
 
     @Override
     public void deleteAllVaults(String holder) {
-        removePlayerCachedVault(holder);
-        deletePlayerVaultFile(holder);
+        synchronized (lock(holder)) {
+            cache.invalidate(holder);
+            deletePlayerVaultFile(holder);
+        }
     }
 
     @Override
     public void cachePlayerVault(String holder) {
-        YamlConfiguration config = this.loadPlayerVaultFile(holder, false);
-        if (config != null) {
-            this.cachedVaultFiles.put(holder, config);
-        }
+        this.getEntry(holder);
     }
 
     @Override
     public void removePlayerCachedVault(String holder) {
-        cachedVaultFiles.remove(holder);
+        cache.release(holder);
     }
 
-    private YamlConfiguration getPlayerVaultFile(String holder) {
-        if (cachedVaultFiles.containsKey(holder)) {
-            return cachedVaultFiles.get(holder);
-        }
-        return loadPlayerVaultFile(holder, true);
+    @Override
+    public VaultCache getCache() {
+        return this.cache;
     }
 
-    private YamlConfiguration loadPlayerVaultFile(String holder, boolean createIfNotFound) {
-        if (!this.directory.exists()) {
-            boolean createdDirs = this.directory.mkdir();
-            if (createdDirs) {
-                PlayerVaults.debug("Created vault directory: " + this.directory.getAbsolutePath());
-            } else {
-                PlayerVaults.getInstance().getLogger().warning("Failed to create vault directory: " + this.directory.getAbsolutePath());
+    private Object lock(String holder) {
+        return this.locks[holder.hashCode() & (this.locks.length - 1)];
+    }
+
+    /**
+     * Gets the vaults of a holder from the cache, reading and caching the file if needed.
+     */
+    private VaultCache.Entry getEntry(String holder) {
+        VaultCache.Entry entry = cache.get(holder);
+        if (entry != null) {
+            return entry;
+        }
+        synchronized (lock(holder)) {
+            // A save may have cached it while this thread was waiting
+            entry = cache.peek(holder);
+            if (entry == null) {
+                entry = readEntry(holder);
+                cache.put(holder, entry);
             }
+            return entry;
         }
+    }
+
+    private VaultCache.Entry readEntry(String holder) {
+        SortedMap<Integer, byte[]> vaults = new TreeMap<>();
+        Map<String, Object> other = new LinkedHashMap<>();
         File file = new File(this.directory, holder + ".yml");
         if (!file.exists()) {
-            if (createIfNotFound) {
+            return new VaultCache.Entry(vaults, other);
+        }
+        YamlConfiguration yaml = YamlConfiguration.loadConfiguration(file);
+        for (String key : yaml.getKeys(false)) {
+            Object value = yaml.get(key);
+            int number = vaultNumber(key);
+            if (number >= 0 && value instanceof String text) {
                 try {
-                    boolean created = file.createNewFile();
-                    if (created) {
-                        PlayerVaults.debug("Created vault file for " + holder);
-                    } else {
-                        PlayerVaults.getInstance().getLogger().warning("Vault file already exists for " + holder);
-                    }
-                } catch (IOException e) {
-                    PlayerVaults.getInstance().addException(new IllegalStateException("Failed to create vault file for: " + holder, e));
+                    vaults.put(number, Base64Coder.decodeLines(text));
+                    continue;
+                } catch (IllegalArgumentException ignored) {
+                    // Kept as it is, reported when the vault is loaded
+                }
+            }
+            other.put(key, value);
+        }
+        return new VaultCache.Entry(vaults, other);
+    }
+
+    private static int vaultNumber(String key) {
+        if (key.startsWith("vault")) {
+            try {
+                int number = Integer.parseInt(key.substring(5));
+                // Only keys this storage would write, so two keys never map to the same vault
+                if (number >= 0 && key.equals(String.format(VAULTKEY, number))) {
+                    return number;
                 }
+            } catch (NumberFormatException e) {
+                // Not a vault
+            }
+        }
+        return -1;
+    }
+
+    private static YamlConfiguration toYaml(VaultCache.Entry entry) {
+        YamlConfiguration yaml = new YamlConfiguration();
+        entry.other().forEach(yaml::set);
+        entry.vaults().forEach((number, serialized) -> yaml.set(String.format(VAULTKEY, number), Base64Coder.encodeLines(serialized)));
+        return yaml;
+    }
+
+    private void createDirectory() {
+        if (!this.directory.exists()) {
+            boolean createdDirs = this.directory.mkdir();
+            if (createdDirs) {
+                PlayerVaults.debug("Created vault directory: " + this.directory.getAbsolutePath());
             } else {
-                return null;
+                PlayerVaults.getInstance().getLogger().warning("Failed to create vault directory: " + this.directory.getAbsolutePath());
             }
         }
-        return YamlConfiguration.loadConfiguration(file);
     }
 
     private void deletePlayerVaultFile(String holder) {
@@ -170,25 +274,22 @@ public class YamlVaultStorage implements VaultStorage {
         }
     }
 
-    private void saveFileSync(final String holder, final YamlConfiguration yaml) {
-        if (cachedVaultFiles.containsKey(holder)) {
-            cachedVaultFiles.put(holder, yaml);
-        }
-
+    private void saveFileSync(final String holder, final VaultCache.Entry entry) {
+        createDirectory();
         final boolean backups = PlayerVaults.getInstance().isBackupsEnabled();
         final File backupsFolder = PlayerVaults.getInstance().getBackupsFolder();
-        final File file = new File(directory, holder + ".yml");
-        if (file.exists() && backups) {
-            boolean renamedTo = file.renameTo(new File(backupsFolder, holder + ".yml"));
-            if (!renamedTo) {
-                PlayerVaults.getInstance().addException(new IllegalStateException("Failed to rename vault file for: " + holder));
-                PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to rename vault file for: " + holder);
-            } else {
-                PlayerVaults.debug("Renamed vault file for " + holder + " to backups folder.");
+        final Path file = directory.toPath().resolve(holder + ".yml");
+        if (backups && Files.exists(file)) {
+            try {
+                AtomicFiles.backup(file, backupsFolder.toPath().resolve(holder + ".yml"));
+                PlayerVaults.debug("Backed up vault file for " + holder + " to backups folder.");
+            } catch (IOException e) {
+                PlayerVaults.getInstance().addException(new IllegalStateException("Failed to back up vault file for: " + holder, e));
+                PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to back up vault file for: " + holder, e);
             }
         }
         try {
-            yaml.save(file);
+            AtomicFiles.write(file, toYaml(entry).saveToString().getBytes(StandardCharsets.UTF_8));
         } catch (IOException e) {
             PlayerVaults.getInstance().addException(new IllegalStateException("Failed to save vault file for: " + holder, e));
             PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to save vault file for: " + holder, e);
@@ -0,0 +1,123 @@
+package com.drtshock.playervaults;
+
+import dev.kitteh.cardboardbox.CardboardBox;
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.UnsafeValues;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.mockito.MockedStatic;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Stands in for the running plugin and server, so storages and serialization can be tested without a server.
+ * <p>
+ * Items are mocks named after their contents, serialized as the UTF-8 bytes of that name.
+ */
+public final class TestPlugin implements AutoCloseable {
+    public static final int DATA_VERSION = 4440;
+
+    private final PlayerVaults plugin;
+    private final MockedStatic<Bukkit> bukkit;
+    private final MockedStatic<CardboardBox> cardboardBox;
+
+    private TestPlugin(Path dataFolder) throws ReflectiveOperationException {
+        File vaultData = dataFolder.resolve("newvaults").toFile();
+        vaultData.mkdirs();
+        File backups = new File(vaultData, "backups");
+        backups.mkdirs();
+        this.plugin = mock(PlayerVaults.class);
+        when(this.plugin.getLogger()).thenReturn(Logger.getLogger("PlayerVaults"));
+        when(this.plugin.addException(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(this.plugin.getDataFolder()).thenReturn(dataFolder.toFile());
+        when(this.plugin.getVaultData()).thenReturn(vaultData);
+        when(this.plugin.getBackupsFolder()).thenReturn(backups);
+        when(this.plugin.getDefaultVaultSize()).thenReturn(54);
+        setInstance(this.plugin);
+
+        UnsafeValues unsafe = mock(UnsafeValues.class);
+        when(unsafe.getDataVersion()).thenReturn(DATA_VERSION);
+        this.bukkit = mockStatic(Bukkit.class);
+        this.bukkit.when(Bukkit::getUnsafe).thenReturn(unsafe);
+        this.cardboardBox = mockStatic(CardboardBox.class);
+        this.cardboardBox.when(() -> CardboardBox.serializeItem(any())).thenAnswer(invocation -> invocation.getArgument(0).toString().getBytes(StandardCharsets.UTF_8));
+        this.cardboardBox.when(() -> CardboardBox.deserializeItem(any())).thenAnswer(invocation -> item(new String((byte[]) invocation.getArgument(0), StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Installs the stand-ins, until closed.
+     *
+     * @param dataFolder the plugin's data folder
+     * @return the stand-ins
+     */
+    public static TestPlugin install(Path dataFolder) {
+        try {
+            return new TestPlugin(dataFolder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public PlayerVaults getPlugin() {
+        return this.plugin;
+    }
+
+    /**
+     * Creates an item, which serializes to the bytes of its name.
+     *
+     * @param name the name
+     * @return the item
+     */
+    public static ItemStack item(String name) {
+        ItemStack item = mock(ItemStack.class, withSettings().name(name));
+        when(item.getType()).thenReturn(Material.STONE);
+        return item;
+    }
+
+    /**
+     * Creates an inventory holding the given items, null for empty slots.
+     *
+     * @param contents the items
+     * @return the inventory
+     */
+    public static Inventory inventory(ItemStack... contents) {
+        Inventory inventory = mock(Inventory.class);
+        when(inventory.getSize()).thenReturn(contents.length);
+        when(inventory.getContents()).thenAnswer(invocation -> contents.clone());
+        return inventory;
+    }
+
+    /**
+     * Gets the name of an item created by {@link #item(String)}.
+     *
+     * @param item the item
+     * @return the name, or null for an empty slot
+     */
+    public static String name(ItemStack item) {
+        return item == null ? null : item.toString();
+    }
+
+    @Override
+    public void close() throws ReflectiveOperationException {
+        this.cardboardBox.close();
+        this.bukkit.close();
+        setInstance(null);
+    }
+
+    private static void setInstance(PlayerVaults plugin) throws ReflectiveOperationException {
+        Field instance = PlayerVaults.class.getDeclaredField("instance");
+        instance.setAccessible(true);
+        instance.set(null, plugin);
+    }
+}
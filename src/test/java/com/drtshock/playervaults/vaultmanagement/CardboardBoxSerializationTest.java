@@ -0,0 +1,229 @@
+package com.drtshock.playervaults.vaultmanagement;
+
+import com.drtshock.playervaults.TestPlugin;
+import com.drtshock.playervaults.vaultmanagement.storage.LazyVaultContents;
+import org.bukkit.inventory.ItemStack;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.List;
+
+import static com.drtshock.playervaults.TestPlugin.inventory;
+import static com.drtshock.playervaults.TestPlugin.item;
+import static com.drtshock.playervaults.TestPlugin.name;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CardboardBoxSerializationTest {
+    private static final String HOLDER = "0b7e3bd5-8a4f-4c55-a1b4-2f1d1c6e9f01";
+    private static final int SPARSE_MAGIC = 0x50565350; // PVSP
+    private static final int VERSIONED_MAGIC = 0x50565356; // PVSV
+
+    @TempDir
+    Path folder;
+    private TestPlugin plugin;
+
+    @BeforeEach
+    void setUp() {
+        this.plugin = TestPlugin.install(this.folder);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        PayloadCodec.setMode(PayloadCodec.Mode.NONE);
+        this.plugin.close();
+    }
+
+    @Test
+    void writesOnlyOccupiedSlots() {
+        ItemStack[] contents = new ItemStack[27];
+        contents[0] = item("a");
+        contents[9] = item("b");
+
+        byte[] expected = ByteBuffer.allocate(4 + 4 + 4 + 4 + 5 + 5)
+                .putInt(VERSIONED_MAGIC).putInt(TestPlugin.DATA_VERSION).putInt(27)
+                .put(new byte[]{0b1, 0b10, 0, 0})
+                .putInt(1).put((byte) 'a').putInt(1).put((byte) 'b')
+                .array();
+        assertArrayEquals(expected, CardboardBoxSerialization.toBytes(inventory(contents), HOLDER));
+    }
+
+    @Test
+    void readsVersionedContents() {
+        ItemStack[] contents = new ItemStack[54];
+        contents[0] = item("sword");
+        contents[53] = item("apple");
+
+        LazyVaultContents read = CardboardBoxSerialization.fromBytesLazy(CardboardBoxSerialization.toBytes(inventory(contents), HOLDER), HOLDER);
+        assertNotNull(read);
+        assertEquals(54, read.getSlotCount());
+        assertEquals(TestPlugin.DATA_VERSION, read.getDataVersion());
+        assertFalse(read.isOutdated());
+        assertEquals("sword", name(read.getItem(0)));
+        assertTrue(read.isEmpty(1));
+        assertEquals("apple", name(read.getItem(53)));
+    }
+
+    @Test
+    void readsSparseContentsWithoutVersion() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(ByteBuffer.allocate(4 + 4 + 2).putInt(SPARSE_MAGIC).putInt(10).put((byte) 0b100).put((byte) 0b10).array());
+        writeItem(out, "pick");
+        writeItem(out, "torch");
+
+        LazyVaultContents read = CardboardBoxSerialization.fromBytesLazy(out.toByteArray(), HOLDER);
+        assertNotNull(read);
+        assertEquals(10, read.getSlotCount());
+        assertEquals(0, read.getDataVersion());
+        assertTrue(read.isOutdated());
+        assertEquals("pick", name(read.getItem(2)));
+        assertEquals("torch", name(read.getItem(9)));
+        assertNull(read.getItem(0));
+    }
+
+    @Test
+    void readsDenseContents() throws IOException {
+        byte[] dense = dense("stick", null, "bow");
+
+        LazyVaultContents read = CardboardBoxSerialization.fromBytesLazy(dense, HOLDER);
+        assertNotNull(read);
+        assertEquals(3, read.getSlotCount());
+        assertEquals(0, read.getDataVersion());
+        assertEquals("stick", name(read.getItem(0)));
+        assertTrue(read.isEmpty(1));
+        assertEquals("bow", name(read.getItem(2)));
+        assertEquals(3, CardboardBoxSerialization.countSlots(ByteBuffer.wrap(dense)));
+    }
+
+    @Test
+    void countsSlotsOfCompressedContents() throws IOException {
+        PayloadCodec.setMode(PayloadCodec.Mode.DICTIONARY);
+        ItemStack[] contents = new ItemStack[54];
+        for (int slot = 0; slot < contents.length; slot += 2) {
+            contents[slot] = item("minecraft:cobblestone");
+        }
+        byte[] compressed = CardboardBoxSerialization.toBytes(inventory(contents), HOLDER);
+
+        assertEquals(0x50564350, ByteBuffer.wrap(compressed).getInt());
+        assertEquals(54, CardboardBoxSerialization.countSlots(ByteBuffer.wrap(compressed)));
+        LazyVaultContents read = CardboardBoxSerialization.fromBytesLazy(compressed, HOLDER);
+        assertNotNull(read);
+        assertEquals("minecraft:cobblestone", name(read.getItem(52)));
+        assertTrue(read.isEmpty(53));
+    }
+
+    @Test
+    void appliesPatchesInOrder() throws IOException {
+        ItemStack[] contents = new ItemStack[27];
+        contents[0] = item("sword");
+        contents[1] = item("apple");
+        byte[] base = CardboardBoxSerialization.toBytes(inventory(contents), HOLDER);
+        contents[1] = item("bread");
+        ByteBuffer first = patch(contents, 1);
+        contents[0] = null;
+        contents[1] = item("cake");
+        ByteBuffer second = patch(contents, 0, 1);
+
+        LazyVaultContents read = CardboardBoxSerialization.fromBytesLazy(CardboardBoxSerialization.applyPatches(ByteBuffer.wrap(base), List.of(first, second)), HOLDER);
+        assertNotNull(read);
+        assertEquals(27, read.getSlotCount());
+        assertTrue(read.isEmpty(0));
+        assertEquals("cake", name(read.getItem(1)));
+    }
+
+    @Test
+    void patchesGrowContentsAndKeepTheirVersion() throws IOException {
+        ItemStack[] grown = new ItemStack[36];
+        grown[30] = item("elytra");
+
+        byte[] merged = CardboardBoxSerialization.applyPatches(ByteBuffer.wrap(dense("stick")), List.of(patch(grown, 30)));
+        LazyVaultContents read = CardboardBoxSerialization.fromBytesLazy(merged, HOLDER);
+        assertNotNull(read);
+        assertEquals(VERSIONED_MAGIC, ByteBuffer.wrap(merged).getInt());
+        assertEquals(31, read.getSlotCount());
+        // The untouched items are as old as the original contents
+        assertEquals(0, read.getDataVersion());
+        assertEquals("stick", name(read.getItem(0)));
+        assertEquals("elytra", name(read.getItem(30)));
+    }
+
+    @Test
+    void reusedBufferKeepsNothingFromEarlierContents() {
+        ItemStack[] full = new ItemStack[54];
+        for (int slot = 0; slot < full.length; slot++) {
+            full[slot] = item("dirt");
+        }
+        CardboardBoxSerialization.toBytes(inventory(full), HOLDER);
+        ItemStack[] contents = new ItemStack[9];
+        contents[8] = item("c");
+
+        byte[] expected = ByteBuffer.allocate(4 + 4 + 4 + 2 + 5)
+                .putInt(VERSIONED_MAGIC).putInt(TestPlugin.DATA_VERSION).putInt(9)
+                .put(new byte[]{0, 0b1})
+                .putInt(1).put((byte) 'c')
+                .array();
+        assertArrayEquals(expected, CardboardBoxSerialization.toBytes(inventory(contents), HOLDER));
+    }
+
+    @Test
+    void patchesMarkEmptiedSlots() {
+        ItemStack[] contents = new ItemStack[27];
+        contents[5] = item("d");
+
+        byte[] expected = ByteBuffer.allocate(4 + 4 + 4 + 4 + 4 + 1)
+                .putInt(2)
+                .putInt(4).putInt(0)
+                .putInt(5).putInt(1).put((byte) 'd')
+                .array();
+        assertArrayEquals(expected, bytes(patch(contents, 4, 5)));
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static ByteBuffer patch(ItemStack[] contents, int... slots) {
+        BitSet set = new BitSet();
+        for (int slot : slots) {
+            set.set(slot);
+        }
+        // Copied out of the thread's buffer, which the next serialization reuses
+        ByteBuffer patch = CardboardBoxSerialization.toPatch(inventory(contents), set, HOLDER);
+        byte[] bytes = new byte[patch.remaining()];
+        patch.get(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Serializes items the way vaults were written before empty slots were skipped: the slot count, then the length
+     * and bytes of every slot, 0 for empty ones.
+     */
+    private static byte[] dense(String... names) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(ByteBuffer.allocate(4).putInt(names.length).array());
+        for (String name : names) {
+            writeItem(out, name);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeItem(ByteArrayOutputStream out, String name) {
+        byte[] item = name == null ? new byte[0] : name.getBytes(StandardCharsets.UTF_8);
+        out.writeBytes(ByteBuffer.allocate(4).putInt(item.length).array());
+        out.writeBytes(item);
+    }
+}
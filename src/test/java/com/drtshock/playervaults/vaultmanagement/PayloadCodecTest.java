@@ -0,0 +1,97 @@
+package com.drtshock.playervaults.vaultmanagement;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PayloadCodecTest {
+    private static final int MAGIC = 0x50564350; // PVCP
+    private static final byte[] ITEMS = "minecraft:diamond_swordminecraft:sharpnessminecraft:unbreaking".repeat(20).getBytes(StandardCharsets.UTF_8);
+
+    @AfterEach
+    void tearDown() {
+        PayloadCodec.setMode(PayloadCodec.Mode.NONE);
+    }
+
+    @Test
+    void readsModesFromConfig() {
+        assertEquals(PayloadCodec.Mode.DICTIONARY, PayloadCodec.Mode.fromConfig(" dictionary "));
+        assertEquals(PayloadCodec.Mode.DEFLATE, PayloadCodec.Mode.fromConfig("Deflate"));
+        assertEquals(PayloadCodec.Mode.NONE, PayloadCodec.Mode.fromConfig("zstd"));
+        assertEquals(PayloadCodec.Mode.NONE, PayloadCodec.Mode.fromConfig(null));
+    }
+
+    @Test
+    void leavesPayloadsAloneWithoutCompression() throws IOException {
+        ByteBuffer raw = ByteBuffer.wrap(ITEMS);
+
+        assertSame(raw, PayloadCodec.encode(raw));
+        assertSame(raw, PayloadCodec.decode(raw));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = PayloadCodec.Mode.class, names = {"DEFLATE", "DICTIONARY"})
+    void compressesAndRestores(PayloadCodec.Mode mode) throws IOException {
+        PayloadCodec.setMode(mode);
+        byte[] encoded = bytes(PayloadCodec.encode(ByteBuffer.wrap(ITEMS)));
+
+        assertEquals(MAGIC, ByteBuffer.wrap(encoded).getInt());
+        assertTrue(encoded.length < ITEMS.length);
+        // Readable whatever the current mode
+        PayloadCodec.setMode(PayloadCodec.Mode.NONE);
+        assertArrayEquals(ITEMS, bytes(PayloadCodec.decode(ByteBuffer.wrap(encoded))));
+    }
+
+    @Test
+    void keepsIncompressiblePayloads() {
+        PayloadCodec.setMode(PayloadCodec.Mode.DEFLATE);
+        byte[] noise = new byte[4096];
+        new Random(42).nextBytes(noise);
+        ByteBuffer raw = ByteBuffer.wrap(noise);
+
+        assertSame(raw, PayloadCodec.encode(raw));
+    }
+
+    @Test
+    void readsUncompressedPayloadsAsIs() throws IOException {
+        // Sparse and versioned contents, and dense contents starting with their slot count
+        for (int marker : new int[]{0x50565350, 0x50565356, 54}) {
+            ByteBuffer raw = ByteBuffer.allocate(64).putInt(marker).put(ITEMS, 0, 60).flip();
+            assertSame(raw, PayloadCodec.decode(raw));
+        }
+    }
+
+    @Test
+    void rejectsNewerCodecVersion() {
+        ByteBuffer data = ByteBuffer.allocate(32).putInt(MAGIC).put((byte) 2).put((byte) 1).put((byte) 0).putInt(100).flip();
+
+        assertThrows(IOException.class, () -> PayloadCodec.decode(data));
+    }
+
+    @Test
+    void rejectsTruncatedPayloads() {
+        PayloadCodec.setMode(PayloadCodec.Mode.DICTIONARY);
+        byte[] encoded = bytes(PayloadCodec.encode(ByteBuffer.wrap(ITEMS)));
+        ByteBuffer truncated = ByteBuffer.wrap(encoded, 0, encoded.length / 2);
+
+        assertThrows(IOException.class, () -> PayloadCodec.decode(truncated));
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,190 @@
+package com.drtshock.playervaults.vaultmanagement.storage;
+
+import com.drtshock.playervaults.TestPlugin;
+import com.drtshock.playervaults.vaultmanagement.CardboardBoxSerialization;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.inventory.ItemStack;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import static com.drtshock.playervaults.TestPlugin.inventory;
+import static com.drtshock.playervaults.TestPlugin.item;
+import static com.drtshock.playervaults.TestPlugin.name;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+
+class BinaryVaultStorageTest {
+    private static final String HOLDER = "0b7e3bd5-8a4f-4c55-a1b4-2f1d1c6e9f01";
+    private static final int MAGIC = 0x50564C54; // PVLT
+
+    @TempDir
+    Path folder;
+    private TestPlugin plugin;
+    private BinaryVaultStorage storage;
+
+    @BeforeEach
+    void setUp() {
+        this.plugin = TestPlugin.install(this.folder);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (this.storage != null) {
+            this.storage.close();
+        }
+        this.plugin.close();
+    }
+
+    @Test
+    void loadsSavedVault() {
+        this.storage = new BinaryVaultStorage();
+        ItemStack[] contents = new ItemStack[27];
+        contents[0] = item("sword");
+        contents[26] = item("apple");
+        this.storage.saveVault(HOLDER, 1, inventory(contents));
+
+        VaultContents loaded = this.storage.loadContents(HOLDER, 1, -1);
+        assertNotNull(loaded);
+        assertEquals(27, loaded.size());
+        assertEquals("sword", name(loaded.items().getItem(0)));
+        assertTrue(loaded.items().isEmpty(1));
+        assertEquals("apple", name(loaded.items().getItem(26)));
+        assertEquals(Set.of(1), this.storage.getVaultNumbers(HOLDER));
+    }
+
+    @Test
+    void opensAtRequestedSize() {
+        this.storage = new BinaryVaultStorage();
+        this.storage.saveVault(HOLDER, 1, inventory(new ItemStack[27]));
+
+        assertEquals(54, this.storage.loadContents(HOLDER, 1, 54).size());
+        assertEquals(27, this.storage.loadContents(HOLDER, 1, 10).size());
+    }
+
+    @Test
+    void rejectsForeignFile() throws IOException {
+        this.storage = new BinaryVaultStorage();
+        writeVaultFile(header(0x12345678, (short) 1, 27, 0, 0));
+
+        assertNull(this.storage.loadContents(HOLDER, 1, -1));
+        verify(this.plugin.getPlugin(), atLeastOnce()).addException(any());
+    }
+
+    @Test
+    void rejectsUnknownVersion() throws IOException {
+        this.storage = new BinaryVaultStorage();
+        writeVaultFile(header(MAGIC, (short) 2, 27, 0, 0));
+
+        assertNull(this.storage.loadContents(HOLDER, 1, -1));
+        verify(this.plugin.getPlugin(), atLeastOnce()).addException(any());
+    }
+
+    @Test
+    void rejectsTruncatedFile() throws IOException {
+        this.storage = new BinaryVaultStorage();
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(header(MAGIC, (short) 1, 27, 0, 100));
+        file.write(new byte[10]);
+        writeVaultFile(file.toByteArray());
+
+        assertNull(this.storage.loadContents(HOLDER, 1, -1));
+        verify(this.plugin.getPlugin(), atLeastOnce()).addException(any());
+    }
+
+    @Test
+    void convertsLegacyFile() throws IOException {
+        ItemStack[] contents = new ItemStack[45];
+        contents[3] = item("diamond");
+        YamlConfiguration yaml = new YamlConfiguration();
+        yaml.set("vault1", Base64Coder.encodeLines(CardboardBoxSerialization.toBytes(inventory(contents), HOLDER)));
+        yaml.set("vault2", Base64Coder.encodeLines(dense("stick", null, "bow")));
+        yaml.set("vault3", "not base64!");
+        yaml.save(this.legacyFile().toFile());
+
+        this.storage = new BinaryVaultStorage();
+
+        VaultContents first = this.storage.loadContents(HOLDER, 1, -1);
+        assertNotNull(first);
+        assertEquals(45, first.size());
+        assertEquals("diamond", name(first.items().getItem(3)));
+        // Three slots written before the sparse format, rounded up to a full row
+        VaultContents second = this.storage.loadContents(HOLDER, 2, -1);
+        assertNotNull(second);
+        assertEquals(9, second.size());
+        assertEquals("stick", name(second.items().getItem(0)));
+        assertTrue(second.items().isEmpty(1));
+        assertEquals("bow", name(second.items().getItem(2)));
+
+        Path holderDirectory = this.vaults().resolve(HOLDER);
+        assertEquals(Set.of(1, 2), this.storage.getVaultNumbers(HOLDER));
+        assertEquals("not base64!", Files.readString(holderDirectory.resolve("3.pv.invalid")));
+        assertFalse(Files.exists(this.legacyFile()));
+        assertTrue(Files.exists(this.vaults().resolve("backups").resolve(HOLDER + ".yml")));
+        assertFalse(Files.exists(this.vaults().resolve(HOLDER + ".converting")));
+        assertEquals(Set.of(HOLDER), this.storage.getHolders());
+    }
+
+    @Test
+    void restartsInterruptedConversion() throws IOException {
+        Path leftover = Files.createDirectories(this.vaults().resolve(HOLDER + ".converting"));
+        Files.write(leftover.resolve("7.pv"), new byte[]{1, 2, 3});
+        YamlConfiguration yaml = new YamlConfiguration();
+        yaml.set("vault1", Base64Coder.encodeLines(dense("stick")));
+        yaml.save(this.legacyFile().toFile());
+
+        this.storage = new BinaryVaultStorage();
+
+        assertNotNull(this.storage.loadContents(HOLDER, 1, -1));
+        assertEquals(Set.of(1), this.storage.getVaultNumbers(HOLDER));
+        assertFalse(Files.exists(leftover));
+    }
+
+    private Path vaults() {
+        return this.folder.resolve("newvaults");
+    }
+
+    private Path legacyFile() {
+        return this.vaults().resolve(HOLDER + ".yml");
+    }
+
+    private void writeVaultFile(byte[] data) throws IOException {
+        Path holderDirectory = Files.createDirectories(this.vaults().resolve(HOLDER));
+        Files.write(holderDirectory.resolve("1.pv"), data);
+    }
+
+    private static byte[] header(int magic, short version, int size, int dataVersion, int payloadLength) {
+        return ByteBuffer.allocate(4 + 2 + 4 + 4 + 4).putInt(magic).putShort(version).putInt(size).putInt(dataVersion).putInt(payloadLength).array();
+    }
+
+    /**
+     * Serializes items the way vaults were written before empty slots were skipped: the slot count, then the length
+     * and bytes of every slot, 0 for empty ones.
+     */
+    private static byte[] dense(String... names) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(ByteBuffer.allocate(4).putInt(names.length).array());
+        for (String name : names) {
+            byte[] item = name == null ? new byte[0] : name.getBytes(StandardCharsets.UTF_8);
+            out.writeBytes(ByteBuffer.allocate(4).putInt(item.length).array());
+            out.writeBytes(item);
+        }
+        return out.toByteArray();
+    }
+}
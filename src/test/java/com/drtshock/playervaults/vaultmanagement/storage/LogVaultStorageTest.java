@@ -0,0 +1,228 @@
+package com.drtshock.playervaults.vaultmanagement.storage;
+
+import com.drtshock.playervaults.TestPlugin;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static com.drtshock.playervaults.TestPlugin.inventory;
+import static com.drtshock.playervaults.TestPlugin.item;
+import static com.drtshock.playervaults.TestPlugin.name;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogVaultStorageTest {
+    private static final String HOLDER = "0b7e3bd5-8a4f-4c55-a1b4-2f1d1c6e9f01";
+    private static final long LARGE_SEGMENTS = 1024 * 1024;
+    // Every record ends up in a segment of its own
+    private static final long TINY_SEGMENTS = 1;
+
+    @TempDir
+    Path folder;
+    private TestPlugin plugin;
+    private LogVaultStorage storage;
+
+    @BeforeEach
+    void setUp() {
+        this.plugin = TestPlugin.install(this.folder);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (this.storage != null) {
+            this.storage.close();
+        }
+        this.plugin.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void reopensSealedLog(boolean memoryMapped) {
+        this.storage = this.open(this.log(), TINY_SEGMENTS, memoryMapped);
+        this.storage.saveVault(HOLDER, 1, vault("sword"));
+        this.storage.saveVault(HOLDER, 2, vault("apple"));
+        this.storage.saveVault(HOLDER, 1, vault("shield"));
+        this.storage.deleteVault(HOLDER, 2);
+        this.storage.close();
+
+        this.storage = this.open(this.log(), TINY_SEGMENTS, memoryMapped);
+        assertEquals("shield", firstItem(this.storage.loadContents(HOLDER, 1, 54)));
+        assertNull(this.storage.loadContents(HOLDER, 2, 54));
+        assertEquals(Set.of(1), this.storage.getVaultNumbers(HOLDER));
+        assertEquals(Set.of(HOLDER), this.storage.getHolders());
+    }
+
+    @Test
+    void scansUnsealedSegment() throws IOException {
+        this.storage = this.open(this.log(), LARGE_SEGMENTS, false);
+        this.storage.saveVault(HOLDER, 1, vault("sword"));
+        this.storage.saveVault(HOLDER, 2, vault("apple"));
+        this.storage.flush();
+        // As left behind by a server that stopped without closing the log
+        Path copy = this.copyLog();
+        this.storage.close();
+
+        this.storage = this.open(copy, LARGE_SEGMENTS, false);
+        assertEquals("sword", firstItem(this.storage.loadContents(HOLDER, 1, 54)));
+        assertEquals("apple", firstItem(this.storage.loadContents(HOLDER, 2, 54)));
+    }
+
+    @Test
+    void dropsIncompleteRecordAtEnd() throws IOException {
+        this.storage = this.open(this.log(), LARGE_SEGMENTS, false);
+        this.storage.saveVault(HOLDER, 1, vault("sword"));
+        this.storage.flush();
+        Path copy = this.copyLog();
+        this.storage.close();
+        Path segment = segments(copy).getFirst();
+        long complete = Files.size(segment);
+        // The start of a record that was never finished
+        Files.write(segment, ByteBuffer.allocate(7).putInt(0x50564C52).put((byte) 0).putShort((short) 36).array(), StandardOpenOption.APPEND);
+
+        this.storage = this.open(copy, LARGE_SEGMENTS, false);
+        assertEquals("sword", firstItem(this.storage.loadContents(HOLDER, 1, 54)));
+        assertEquals(complete, Files.size(segment));
+        this.storage.saveVault(HOLDER, 2, vault("apple"));
+        this.storage.close();
+
+        this.storage = this.open(copy, LARGE_SEGMENTS, false);
+        assertEquals("apple", firstItem(this.storage.loadContents(HOLDER, 2, 54)));
+    }
+
+    @Test
+    void scansSegmentWithCorruptFooter() throws IOException {
+        this.storage = this.open(this.log(), TINY_SEGMENTS, false);
+        this.storage.saveVault(HOLDER, 1, vault("sword"));
+        this.storage.saveVault(HOLDER, 2, vault("apple"));
+        this.storage.close();
+        Path sealed = segments(this.log()).getFirst();
+        try (FileChannel channel = FileChannel.open(sealed, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0}), channel.size() - 1);
+        }
+
+        this.storage = this.open(this.log(), TINY_SEGMENTS, false);
+        assertEquals("sword", firstItem(this.storage.loadContents(HOLDER, 1, 54)));
+        assertEquals("apple", firstItem(this.storage.loadContents(HOLDER, 2, 54)));
+        this.storage.close();
+
+        // The footer was written again
+        this.storage = this.open(this.log(), TINY_SEGMENTS, false);
+        assertEquals("sword", firstItem(this.storage.loadContents(HOLDER, 1, 54)));
+    }
+
+    @Test
+    void finishesInterruptedSegmentDeletion() throws IOException {
+        this.storage = this.open(this.log(), TINY_SEGMENTS, false);
+        this.storage.saveVault(HOLDER, 1, vault("sword"));
+        this.storage.saveVault(HOLDER, 1, vault("shield"));
+        this.storage.close();
+        List<Path> segments = segments(this.log());
+        assertEquals(2, segments.size());
+        // A compaction that copied everything out of the first segment, but could not delete it yet
+        Path compacted = segments.getFirst();
+        Path marker = compacted.resolveSibling(compacted.getFileName() + ".deleted");
+        Files.createFile(marker);
+
+        this.storage = this.open(this.log(), TINY_SEGMENTS, false);
+        assertFalse(Files.exists(compacted));
+        assertFalse(Files.exists(marker));
+        assertEquals("shield", firstItem(this.storage.loadContents(HOLDER, 1, 54)));
+    }
+
+    @Test
+    void appliesPatches() {
+        this.storage = this.open(this.log(), LARGE_SEGMENTS, false);
+        ItemStack[] contents = new ItemStack[54];
+        contents[0] = item("sword");
+        contents[1] = item("apple");
+        this.storage.saveVault(HOLDER, 1, inventory(contents));
+        contents[1] = item("bread");
+        this.storage.saveSlots(HOLDER, 1, inventory(contents), slots(1));
+        contents[0] = null;
+        contents[53] = item("torch");
+        this.storage.saveSlots(HOLDER, 1, inventory(contents), slots(0, 53));
+
+        this.assertPatched(this.storage.loadContents(HOLDER, 1, 54));
+        this.storage.close();
+        this.storage = this.open(this.log(), LARGE_SEGMENTS, false);
+        this.assertPatched(this.storage.loadContents(HOLDER, 1, 54));
+    }
+
+    @Test
+    void refusesReadsOnceClosed() {
+        this.storage = this.open(this.log(), LARGE_SEGMENTS, false);
+        this.storage.saveVault(HOLDER, 1, vault("sword"));
+        this.storage.close();
+
+        assertThrows(IllegalStateException.class, () -> this.storage.loadContents(HOLDER, 1, 54));
+        this.storage = null;
+    }
+
+    private void assertPatched(VaultContents contents) {
+        assertNotNull(contents);
+        assertTrue(contents.items().isEmpty(0));
+        assertEquals("bread", name(contents.items().getItem(1)));
+        assertEquals("torch", name(contents.items().getItem(53)));
+    }
+
+    private LogVaultStorage open(Path directory, long maxSegmentSize, boolean memoryMapped) {
+        return new LogVaultStorage(directory, maxSegmentSize, 0.5, 60, memoryMapped);
+    }
+
+    private Path log() {
+        return this.folder.resolve("vaultlog");
+    }
+
+    private Path copyLog() throws IOException {
+        Path copy = Files.createDirectories(this.folder.resolve("copy"));
+        for (Path segment : segments(this.log())) {
+            Files.copy(segment, copy.resolve(segment.getFileName()));
+        }
+        return copy;
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".pvl")).sorted().toList();
+        }
+    }
+
+    private static Inventory vault(String first) {
+        ItemStack[] contents = new ItemStack[54];
+        contents[0] = item(first);
+        return inventory(contents);
+    }
+
+    private static String firstItem(VaultContents contents) {
+        assertNotNull(contents);
+        return name(contents.items().getItem(0));
+    }
+
+    private static BitSet slots(int... slots) {
+        BitSet set = new BitSet();
+        for (int slot : slots) {
+            set.set(slot);
+        }
+        return set;
+    }
+}
@@ -0,0 +1,69 @@
+package com.drtshock.playervaults.vaultmanagement.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class MySQLSchemaTest {
+
+    @Test
+    void storesUuidsAsRawBytes() {
+        UUID uuid = UUID.fromString("0b7e3bd5-8a4f-4c55-a1b4-2f1d1c6e9f01");
+        byte[] key = MySQLSchema.holderKey(uuid.toString());
+
+        assertEquals(16, key.length);
+        assertEquals(uuid.toString(), MySQLSchema.holder(key));
+    }
+
+    @Test
+    void padsShortNames() {
+        byte[] key = MySQLSchema.holderKey("admins");
+
+        assertEquals(17, key.length);
+        assertEquals("admins", MySQLSchema.holder(key));
+    }
+
+    @Test
+    void keepsLongNames() {
+        String name = "a group name longer than a uuid";
+        byte[] key = MySQLSchema.holderKey(name);
+
+        assertEquals(name.getBytes(StandardCharsets.UTF_8).length, key.length);
+        assertEquals(name, MySQLSchema.holder(key));
+    }
+
+    @Test
+    void keepsNonCanonicalUuidsAsNames() {
+        // UUID.fromString accepts these, but they would come back as a different string
+        String holder = "0B7E3BD5-8A4F-4C55-A1B4-2F1D1C6E9F01";
+        byte[] key = MySQLSchema.holderKey(holder);
+
+        assertNotEquals(16, key.length);
+        assertEquals(holder, MySQLSchema.holder(key));
+        assertEquals("1-2-3-4-5", MySQLSchema.holder(MySQLSchema.holderKey("1-2-3-4-5")));
+    }
+
+    @Test
+    void detectsOriginalLayout() {
+        assertEquals(1, MySQLSchema.layoutVersion(Map.of("holder", "VARCHAR", "number", "INT", "size", "INT", "data", "TEXT")));
+    }
+
+    @Test
+    void detectsCurrentLayout() {
+        assertEquals(2, MySQLSchema.layoutVersion(Map.of("holder", "VARBINARY", "number", "INT", "size", "INT", "data", "MEDIUMBLOB", "last_modified", "TIMESTAMP")));
+    }
+
+    @Test
+    void rejectsUnknownLayouts() {
+        assertEquals(0, MySQLSchema.layoutVersion(Map.of()));
+        assertEquals(0, MySQLSchema.layoutVersion(Map.of("holder", "VARCHAR", "data", "TEXT")));
+        // Migrated holders but not the rest, never treated as the original table
+        assertEquals(0, MySQLSchema.layoutVersion(Map.of("holder", "VARBINARY", "number", "INT", "size", "INT", "data", "TEXT")));
+        assertEquals(0, MySQLSchema.layoutVersion(Map.of("holder", "VARCHAR", "number", "INT", "size", "INT", "data", "TEXT", "last_modified", "TIMESTAMP")));
+    }
+}
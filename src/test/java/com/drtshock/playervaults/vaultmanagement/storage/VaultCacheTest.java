@@ -0,0 +1,118 @@
+package com.drtshock.playervaults.vaultmanagement.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class VaultCacheTest {
+    // Holder overhead, two bytes per holder character, then vault overhead and payload
+    private static final long ONE_VAULT = 128 + 2 + 48 + 100;
+
+    @Test
+    void weighsEntries() {
+        VaultCache cache = new VaultCache(10_000, 0);
+        cache.put("a", entry(100));
+        assertEquals(ONE_VAULT, cache.getWeight());
+
+        cache.put("a", cache.get("a").with(2, new byte[50]));
+        assertEquals(ONE_VAULT + 48 + 50, cache.getWeight());
+
+        cache.put("a", cache.get("a").with(2, null));
+        assertEquals(ONE_VAULT, cache.getWeight());
+
+        cache.invalidate("a");
+        assertEquals(0, cache.getWeight());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void weighsUnreadableValuesAsText() {
+        VaultCache cache = new VaultCache(10_000, 0);
+        cache.put("a", new VaultCache.Entry(new TreeMap<>(), Map.of("vault3", "abcd")));
+
+        assertEquals(128 + 2 + 48 + 8, cache.getWeight());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() {
+        VaultCache cache = new VaultCache(ONE_VAULT * 2, 0);
+        cache.put("a", entry(100));
+        cache.put("b", entry(100));
+        cache.get("a");
+        cache.put("c", entry(100));
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(ONE_VAULT * 2, cache.getWeight());
+        assertNotNull(cache.peek("a"));
+        assertNull(cache.peek("b"));
+        assertNotNull(cache.peek("c"));
+    }
+
+    @Test
+    void skipsEntriesLargerThanTheCache() {
+        VaultCache cache = new VaultCache(ONE_VAULT - 1, 0);
+        cache.put("a", entry(100));
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void countsHitsAndMisses() {
+        VaultCache cache = new VaultCache(10_000, 0);
+        VaultCache.Entry entry = entry(100);
+        cache.put("a", entry);
+
+        assertSame(entry, cache.get("a"));
+        assertNull(cache.get("b"));
+        assertSame(entry, cache.peek("a"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void movesEvictedEntriesOffHeap() {
+        VaultCache cache = new VaultCache(ONE_VAULT, 1024 * 1024);
+        cache.put("a", entry(100));
+        cache.put("b", entry(100));
+
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getOffHeap().size());
+        // Comes back to the heap, pushing the other one off it
+        VaultCache.Entry restored = cache.get("a");
+        assertNotNull(restored);
+        assertArrayEquals(new byte[100], restored.vaults().get(1));
+        assertEquals(ONE_VAULT, cache.getWeight());
+        assertNotNull(cache.peek("b"));
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    void releasesHoldersOffHeap() {
+        VaultCache cache = new VaultCache(10_000, 1024 * 1024);
+        cache.put("a", entry(100));
+        cache.release("a");
+
+        assertEquals(0, cache.getWeight());
+        assertNotNull(cache.peek("a"));
+
+        cache.invalidate("a");
+        assertNull(cache.peek("a"));
+    }
+
+    private static VaultCache.Entry entry(int length) {
+        TreeMap<Integer, byte[]> vaults = new TreeMap<>();
+        vaults.put(1, new byte[length]);
+        return new VaultCache.Entry(vaults, Map.of());
+    }
+}